@@ -0,0 +1,46 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The <code>AtomicFiles</code> class replaces stores, checkpoints and
+ * sidecar files by a temporary file written next to them. The temporary file
+ * is renamed over the file in a single step, so that a crash leaves either
+ * the old file or the new one, and other processes keeping the old file
+ * memory-mapped go on reading it rather than a truncated file.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class AtomicFiles {
+
+    /**
+     * Renames a file over another one in a single step where the file
+     * system allows it, so that there is no time at which neither of them
+     * exists.
+     * @param temp File to rename.
+     * @param fileName Name of the file it replaces.
+     * @return null.
+     */
+    public static void replace(File temp, String fileName) throws IOException {
+	Path target = Paths.get(fileName);
+	try {
+	    Files.move(temp.toPath(),target,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(temp.toPath(),target,StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+}
@@ -0,0 +1,67 @@
+package ammo;
+
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.util.Arrays;
+
+
+public class BitSetCollector extends Collector {
+
+    OpenBitSet bits;
+
+    int docBase;
+
+    /**
+     * Documents collected since the last reset, so that a reset clears only
+     * their bits, until there are more of them than words in the bitset and
+     * clearing all of it costs less.
+     */
+    int [] collected = new int[64];
+
+    int collectedCount = 0;
+
+    int wordCount;
+
+    public BitSetCollector(int maxDoc) {
+	bits = new OpenBitSet(maxDoc);
+	docBase = 0;
+	wordCount = (maxDoc + 63) >>> 6;
+    }
+
+    public void reset() {
+	if (collectedCount > wordCount)
+	    bits.clear(0,bits.size());
+	else {
+	    for(int i=0; i < collectedCount; i++)
+		bits.fastClear(collected[i]);
+	}
+	collectedCount = 0;
+	docBase = 0;
+    }
+
+    public void setScorer(Scorer scorer) {
+
+    }
+
+    public boolean acceptsDocsOutOfOrder() {
+	return true;
+    }
+
+    public void collect(int doc) {
+	bits.fastSet(docBase + doc);
+	if (collectedCount <= wordCount) {
+	    if (collectedCount == collected.length)
+		collected = Arrays.copyOf(collected, 2 * collected.length);
+	    collected[collectedCount] = docBase + doc;
+	}
+	collectedCount ++;
+    }
+
+    public void setNextReader(IndexReader reader, int docBase) {
+	this.docBase = docBase;
+    }
+
+}
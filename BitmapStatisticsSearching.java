@@ -0,0 +1,242 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+
+import java.util.HashMap;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ *  The <code>BitmapStatisticsSearching</code> class answers the statistics queries from memory. It loads the B-Tree index built by <code>CachingStatisticsIndexing</code> once, keeps one compressed bitmap of element ids per concept, and computes every count as a bitmap intersection. The bitmaps are read-only once loaded, so the count methods may be called from any number of threads.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class BitmapStatisticsSearching implements StatisticsSearching {
+
+    /**
+     * Compressed bitmap of element (document) ids for each concept.
+     */
+    HashMap<Long,CompressedBitmap> conceptBitmaps;
+
+    /**
+     * Compressed bitmap of element ids for the subtree of each concept, 
+     * empty unless the index was built with hierarchy propagation.
+     */
+    HashMap<Long,CompressedBitmap> subtreeBitmaps;
+
+    /**
+     * Number of elements in the index.
+     */
+    int maxElement;
+
+    /**
+     * Bitmap returned for concepts without annotations.
+     */
+    CompressedBitmap emptyBitmap;
+
+    /**
+     * Constructor loads the per-concept bitmaps from the disk-based B-tree
+     * index.
+     */
+    public BitmapStatisticsSearching(String indexName) {
+	conceptBitmaps = new HashMap<Long,CompressedBitmap> ();
+	subtreeBitmaps = new HashMap<Long,CompressedBitmap> ();
+	emptyBitmap = new CompressedBitmap();
+	try {
+	    File file = new File(indexName);
+	    Directory directory = new SimpleFSDirectory(file);
+	    IndexReader reader = IndexReader.open(directory,true);
+	    maxElement = reader.maxDoc();
+	    loadBitmaps(reader,"concepts",conceptBitmaps);
+	    loadBitmaps(reader,"ancestors",subtreeBitmaps);
+	    reader.close();
+	} catch (Exception e) {
+	    System.out.println("Exception1 : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Reads the full-precision terms of a numeric field and collects the
+     * documents of each one into a bitmap.
+     * @param reader Reader over the B-tree index.
+     * @param field Name of the field.
+     * @param bitmaps Map receiving the bitmap of each term.
+     */
+    private void loadBitmaps(IndexReader reader, String field, HashMap<Long,CompressedBitmap> bitmaps) throws Exception {
+	TermEnum terms = reader.terms(new Term(field, NumericUtils.longToPrefixCoded(Long.MIN_VALUE)));
+	TermDocs termDocs = reader.termDocs();
+	int [] docs = new int[256];
+	int [] freqs = new int[256];
+	try {
+	    do {
+		Term term = terms.term();
+		if (term == null || !term.field().equals(field))
+		    break;
+		// Lower precision terms of the numeric field start with a larger shift.
+		if (term.text().charAt(0) != NumericUtils.SHIFT_START_LONG)
+		    break;
+		CompressedBitmap bitmap = new CompressedBitmap();
+		termDocs.seek(terms);
+		int read;
+		while ((read = termDocs.read(docs,freqs)) > 0) {
+		    for(int i=0; i < read; i++)
+			bitmap.add(docs[i]);
+		}
+		bitmap.trim();
+		bitmaps.put(NumericUtils.prefixCodedToLong(term.text()),bitmap);
+	    } while (terms.next());
+	} finally {
+	    termDocs.close();
+	    terms.close();
+	}
+    }
+
+    /**
+     * Gets the bitmap of elements annotated with a concept.
+     * @param concept Concept identifier.
+     * @return Bitmap of element ids.
+     */
+    private CompressedBitmap getBitmap(long concept) {
+	CompressedBitmap bitmap = conceptBitmaps.get(concept);
+	if (bitmap == null)
+	    return emptyBitmap;
+	return bitmap;
+    }
+
+    /**
+     * Method to get counts for a concept and the parents under a given context.
+     * @param parentConcept Array of parent concepts in a given ontology.
+     * @param childConcept Child concept for a given ontology.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Long-array representing the possible counts.
+     */
+    public long [] getCountsUnderContext(long [] parentConcept, long childConcept, long contextConcept) {
+	int pLength = parentConcept.length;
+	int iLength = 1 << pLength;
+	long [] Count = new long[2*iLength];
+	CompressedBitmap context = getBitmap(contextConcept);
+	CompressedBitmap child = getBitmap(childConcept);
+	CompressedBitmap [] parents = new CompressedBitmap[pLength];
+	for(int i=0; i < pLength; i++)
+	    parents[i] = getBitmap(parentConcept[i]);
+
+	for(int instance = 0; instance < iLength; instance++) {
+	    CompressedBitmap cell = context;
+	    // The first parent is the most significant bit of the instance.
+	    for(int i=0; i < pLength; i++) {
+		if (((instance >>> (pLength - 1 - i)) & 1) == 1)
+		    cell = cell.and(parents[i]);
+		else
+		    cell = cell.andNot(parents[i]);
+	    }
+	    long childCount = cell.andCardinality(child);
+	    Count[2*instance] = cell.cardinality() - childCount;
+	    Count[2*instance + 1] = childCount;
+	}
+	return Count;
+    }
+
+    /**
+     * Method to get the counts of a source concept against every concept of
+     * a destination ontology under a given context.
+     * @param sourceConcept Source concept acting as the single parent.
+     * @param contextConcept Context concept for a given ontology.
+     * @param startIndex Starting concept identifier of the destination ontology.
+     * @param length Total number of concepts in the destination ontology.
+     * @return Long-array with four counts per destination concept.
+     */
+    public long [] getDestinationCountsUnderContext(long sourceConcept, long contextConcept, long startIndex, long length) {
+	CompressedBitmap context = getBitmap(contextConcept);
+	CompressedBitmap sourceContext = context.and(getBitmap(sourceConcept));
+	long contextCount = context.cardinality();
+	long sourceCount = sourceContext.cardinality();
+	long [] Count = new long[4*((int) length)];
+	for(int i=0; i < length; i++) {
+	    CompressedBitmap destination = conceptBitmaps.get(startIndex + i);
+	    long destinationCount = 0;
+	    long jointCount = 0;
+	    if (destination != null) {
+		destinationCount = destination.andCardinality(context);
+		jointCount = destination.andCardinality(sourceContext);
+	    }
+	    Count[4*i + 3] = jointCount;
+	    Count[4*i + 2] = sourceCount - jointCount;
+	    Count[4*i + 1] = destinationCount - jointCount;
+	    Count[4*i] = contextCount - sourceCount - destinationCount + jointCount;
+	}
+	return Count;
+    }
+
+    /**
+     * Method to get the number of elements annotated with a source concept
+     * and with a concept in the subtree of a destination concept, under a 
+     * given context.
+     * @param sourceConcept Source concept for a given ontology.
+     * @param subtreeConcept Root of the destination subtree.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Count for the subtree, or -1 if the index has no propagated hierarchy.
+     */
+    public long getSubtreeCountUnderContext(long sourceConcept, long subtreeConcept, long contextConcept) {
+	if (subtreeBitmaps.isEmpty())
+	    return -1;
+	CompressedBitmap subtree = subtreeBitmaps.get(subtreeConcept);
+	if (subtree == null)
+	    return 0;
+	return getBitmap(contextConcept).and(getBitmap(sourceConcept)).andCardinality(subtree);
+    }
+
+    /**
+     * Getting total concept count in the data-structure for a given ontology.
+     * @param concept Starting concept identifier for a given ontology.
+     * @param length Total number of concepts in the ontology.
+     * @return Total concept count.
+     */
+    public long getTotalConceptCount(long concept, long length) {
+	if (length == 0)
+	    return getConceptCount(concept);
+	long [] words = new long[(maxElement >>> 6) + 1];
+	for(long c = concept; c < concept + length; c++) {
+	    CompressedBitmap bitmap = conceptBitmaps.get(c);
+	    if (bitmap != null)
+		bitmap.orInto(words);
+	}
+	long count = 0;
+	for(int i=0; i < words.length; i++)
+	    count += Long.bitCount(words[i]);
+	return count;
+    }
+
+    /**
+     * Getting total concept count in the data-structure for a given concept.
+     * @param concept Concept identifier for a given ontology.
+     * @return Total count for the given concept.
+     */
+    public long getConceptCount(long concept) {
+	return getBitmap(concept).cardinality();
+    }
+
+    public static void main(String[] args) throws Exception {
+	long time = System.currentTimeMillis();
+	BitmapStatisticsSearching bss = new BitmapStatisticsSearching(args[0]);
+	System.out.println("Loaded " + bss.conceptBitmaps.size() + " concepts in " + (System.currentTimeMillis() - time));
+
+	time = System.currentTimeMillis();
+	long[] parent = {Long.parseLong(args[1])};
+	long [] counts = bss.getCountsUnderContext(parent,Long.parseLong(args[2]),Long.parseLong(args[3]));
+	System.out.println(counts[0] + ":" + counts[1] + ":" + counts[2] + ":" + counts[3]);
+	System.out.println(System.currentTimeMillis() - time);
+    }
+
+}
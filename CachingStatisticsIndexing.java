@@ -6,12 +6,26 @@ A Bayesian-centric mapping approach for bioinformatics
 package ammo;
 
 import java.io.File;
+import java.io.IOException;
 
 import java.util.ArrayList;
-
-import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
@@ -20,6 +34,8 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.NumericField;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.util.NumericUtils;
 
 
 /**
@@ -49,33 +65,185 @@ public class CachingStatisticsIndexing {
     IndexWriter writer;
 
     /**
-     * Handler to a sub-set of rows from NCBO tables.
-     *
+     * Class representing NCBO database.
      */
-    ResultSet resultset;
+    Resource resource;
 
     /**
-     * Class representing NCBO database.
+     * Directory of the local dumps of the database read instead of the
+     * database, or null.
      */
-    Resource resource;
+    String dumpDirectory;
 
     /**
      * Limit characterizing the number of documents in memory before writing on      * to the disk.
      */
     int flushLimit = 10000;
 
+    /**
+     * Whether the index is bulk loaded : the writer flushes on the size of
+     * its RAM buffer, segments are merged in large steps, and the index is 
+     * committed every <code>checkpointLimit</code> documents instead of 
+     * being optimized and reopened every <code>flushLimit</code> documents.
+     * The index is optimized once, at the end.
+     */
+    boolean bulkLoad = false;
+
+    /**
+     * Size of the RAM buffer of the writer in bulk-load mode, in megabytes.
+     */
+    double ramBufferMB = 256.0;
+
+    /**
+     * Number of segments merged at once in bulk-load mode.
+     */
+    int bulkMergeFactor = 30;
+
+    /**
+     * Number of documents between durable checkpoints in bulk-load mode.
+     */
+    int checkpointLimit = 500000;
+
+    /**
+     * Number of attempts at reading a window of the parallel indexer, and
+     * delay in milliseconds before the first retry, doubled at each retry.
+     */
+    int readAttempts = 5;
+
+    long retryDelay = 1000;
+
+    /**
+     * Start time and number of documents of the current load, for progress
+     * reports.
+     */
+    long loadStart = System.currentTimeMillis();
+
+    long loadedDocs = 0;
+
+    /**
+     * Largest size seen of every file of the index, for progress reports.
+     * Index files are written once, so the sum is the number of bytes 
+     * written.
+     */
+    HashMap<String,Long> fileBytes = new HashMap<String,Long> ();
+
+    /**
+     * Name of the commit metadata entry holding the watermark.
+     */
+    static final String WATERMARK = "element_watermark";
+
+    /**
+     * Largest element id whose document has been added to the index. Every 
+     * commit stores it, so an interrupted or outdated index can be resumed
+     * from the element after it.
+     */
+    long watermark = 0;
+
+    /**
+     * Whether added documents replace earlier documents of the same element.
+     */
+    boolean replaceDocuments = false;
+
+    /**
+     * Number of buckets of the MinHash sketch written for each concept, 0
+     * to write no sketches.
+     */
+    int sketchBuckets = 32;
+
+    /**
+     * Parents of every concept of the ontologies whose hierarchy is
+     * propagated, or null if elements are only indexed under the concepts
+     * they are annotated with.
+     */
+    HashMap<Long,HashSet<Long>> parents;
+
+    /**
+     * Memoized ancestors (including the concept itself) of each concept. 
+     * Shared by the workers of the parallel indexer.
+     */
+    ConcurrentHashMap<Long,long []> ancestors;
+
+    /**
+     * Window of element ids fetched by a reader thread of the parallel
+     * indexer, with the rows grouped by element. The rows are kept in
+     * arrays grown by doubling, so that reading a row allocates nothing.
+     */
+    private static class IndexWindow implements Resource.RowHandler {
+
+	/**
+	 * Position of the window in the sequence of windows.
+	 */
+	long number;
+
+	/**
+	 * Element ids, and the concepts of the i-th element from 
+	 * <code>offsets[i]</code> to <code>offsets[i + 1]</code>.
+	 */
+	long [] elements = new long[16];
+
+	int [] offsets = new int[17];
+
+	long [] concepts = new long[64];
+
+	int size = 0;
+
+	IndexWindow(long number) {
+	    this.number = number;
+	}
+
+	public void handleRow(long element, long concept) {
+	    if (size == 0 || element != elements[size - 1]) {
+		if (size == elements.length) {
+		    elements = Arrays.copyOf(elements, 2 * size);
+		    offsets = Arrays.copyOf(offsets, 2 * size + 1);
+		}
+		elements[size] = element;
+		offsets[size + 1] = offsets[size];
+		size ++;
+	    }
+	    if (offsets[size] == concepts.length)
+		concepts = Arrays.copyOf(concepts, 2 * concepts.length);
+	    concepts[offsets[size]] = concept;
+	    offsets[size] ++;
+	}
+    }
+
+    /**
+     * Window marking the end of a queue.
+     */
+    private static final IndexWindow END = new IndexWindow(-1);
+
     /**
      * Constructor initializes available resource and the handler for the
      * disk-based datastructure.
      */
     public CachingStatisticsIndexing(String tableName, String indexName, boolean append) {
+	this(tableName,indexName,append,null);
+    }
+
+    /**
+     * Constructor reading the resource from the local dumps of a 
+     * <code>FileResource</code> when a dump directory is given.
+     */
+    public CachingStatisticsIndexing(String tableName, String indexName, boolean append, String dumpDirectory) {
 	this.indexName = indexName;
 	this.tableName = tableName;
-	resource = new Resource("ncbodev-obrdbmaster1.sunet", "resource_index_test", "ammo", "ammo");
+	this.dumpDirectory = dumpDirectory;
+	resource = newResource();
 	
 	writer = saveIndex(indexName,append);
     }
 
+    /**
+     * Opens a connection to the NCBO database resource.
+     * @return Resource representing the database.
+     */
+    private Resource newResource() {
+	if (dumpDirectory != null)
+	    return new FileResource(dumpDirectory);
+	return new Resource("ncbodev-obrdbmaster1.sunet", "resource_index_test", "ammo", "ammo");
+    }
+
     /**
      * Writes the memory based B-tree index onto the disk.
      *
@@ -88,7 +256,16 @@ public class CachingStatisticsIndexing {
 	    File file = new File(indexName);
 	    Directory directory = new SimpleFSDirectory(file);
 	    Analyzer analyzer = new WhitespaceAnalyzer();
-	    return new IndexWriter(directory,analyzer,append,IndexWriter.MaxFieldLength.UNLIMITED);
+	    IndexWriter indexWriter = new IndexWriter(directory,analyzer,append,IndexWriter.MaxFieldLength.UNLIMITED);
+	    if (bulkLoad) {
+		indexWriter.setRAMBufferSizeMB(ramBufferMB);
+		indexWriter.setMaxBufferedDocs(IndexWriter.DISABLE_AUTO_FLUSH);
+		indexWriter.setUseCompoundFile(false);
+		LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy(indexWriter);
+		mergePolicy.setMergeFactor(bulkMergeFactor);
+		indexWriter.setMergePolicy(mergePolicy);
+	    }
+	    return indexWriter;
 	} catch (Exception e) {
 	    System.out.println(e.getMessage());
 	    return null;
@@ -96,23 +273,117 @@ public class CachingStatisticsIndexing {
     }
 
     /**
-     * Creates a Lucene document from an arraylist of concepts.
+     * Turns on hierarchy propagation : every element is also indexed under
+     * all ancestors of its concepts, in the <code>ancestors</code> field, so
+     * that the count of a concept together with its descendants is a single
+     * term lookup.
+     * @param ontologies Graphs of the ontologies whose hierarchy is propagated.
+     * @return null
+     */
+    public void propagateHierarchy(ArrayList<GraphADS> ontologies) {
+	parents = new HashMap<Long,HashSet<Long>> ();
+	ancestors = new ConcurrentHashMap<Long,long []> ();
+	for(int i=0; i < ontologies.size(); i++) {
+	    GraphADS ontology = ontologies.get(i);
+	    for(int n=0; n < ontology.length; n++) {
+		if (ontology.parentStart(n) == ontology.parentEnd(n))
+		    continue;
+		HashSet<Long> childParents = new HashSet<Long> ();
+		for(int p = ontology.parentStart(n); p < ontology.parentEnd(n); p++)
+		    childParents.add(ontology.concept(ontology.parent(p)));
+		parents.put(ontology.concept(n),childParents);
+	    }
+	}
+	// Parents in other ontologies are kept apart from the compressed graphs.
+	for(int i=0; i < ontologies.size(); i++) {
+	    HashMap<Long,HashSet<Long>> externalEdges = ontologies.get(i).getExternalEdges();
+	    Iterator<Long> pIterator = externalEdges.keySet().iterator();
+	    while(pIterator.hasNext()) {
+		Long parent = pIterator.next();
+		Iterator<Long> cIterator = externalEdges.get(parent).iterator();
+		while(cIterator.hasNext()) {
+		    Long child = cIterator.next();
+		    HashSet<Long> childParents = parents.get(child);
+		    if (childParents == null) {
+			childParents = new HashSet<Long> ();
+			parents.put(child,childParents);
+		    }
+		    childParents.add(parent);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Computes the ancestors of a concept, including the concept itself.
+     * @param concept Concept identifier.
+     * @param visiting Concepts on the current path, guarding against cycles.
+     * @return Array of ancestor concept identifiers.
+     */
+    private long [] getAncestors(Long concept, HashSet<Long> visiting) {
+	long [] result = ancestors.get(concept);
+	if (result != null)
+	    return result;
+	HashSet<Long> closure = new HashSet<Long> ();
+	closure.add(concept);
+	HashSet<Long> conceptParents = parents.get(concept);
+	if (conceptParents != null) {
+	    visiting.add(concept);
+	    Iterator pIterator = conceptParents.iterator();
+	    while(pIterator.hasNext()) {
+		Long parent = (Long) pIterator.next();
+		if (visiting.contains(parent))
+		    continue;
+		long [] parentAncestors = getAncestors(parent,visiting);
+		for(int i=0; i < parentAncestors.length; i++)
+		    closure.add(parentAncestors[i]);
+	    }
+	    visiting.remove(concept);
+	}
+	result = new long[closure.size()];
+	int i = 0;
+	Iterator cIterator = closure.iterator();
+	while(cIterator.hasNext())
+	    result[i++] = (Long) cIterator.next();
+	ancestors.put(concept,result);
+	return result;
+    }
+
+    /**
+     * Creates a Lucene document from a range of an array of concepts.
      * @param Element Id of element to be indexed.
-     * @param Concepts List of concept identifires to be indexed.
+     * @param Concepts Array holding the concept identifires to be indexed.
+     * @param from First position of the concepts in the array.
+     * @param to Position after the last concept in the array.
      * @return Lucene document.
      */
-    private Document makeDocument(Long element, ArrayList<Long> concepts) { 
+    private Document makeDocument(long element, long [] concepts, int from, int to) { 
 	try {
 	    Document document = new Document();
 	    NumericField nElem = new NumericField("element");
 	    nElem.setLongValue(element);
 	    document.add(nElem);
 
-	    for(int i=0 ; i < concepts.size(); i++) {
+	    for(int i=from ; i < to; i++) {
 		NumericField nCon = new NumericField("concepts");
-		nCon.setLongValue(concepts.get(i));
+		nCon.setLongValue(concepts[i]);
 		document.add(nCon);
 	    }
+	    if (parents != null) {
+		HashSet<Long> elementAncestors = new HashSet<Long> ();
+		HashSet<Long> visiting = new HashSet<Long> ();
+		for(int i=from ; i < to; i++) {
+		    long [] conceptAncestors = getAncestors(concepts[i],visiting);
+		    for(int j=0; j < conceptAncestors.length; j++)
+			elementAncestors.add(conceptAncestors[j]);
+		}
+		Iterator aIterator = elementAncestors.iterator();
+		while(aIterator.hasNext()) {
+		    NumericField nAnc = new NumericField("ancestors");
+		    nAnc.setLongValue((Long) aIterator.next());
+		    document.add(nAnc);
+		}
+	    }
 	    return document;
 	} catch (Exception e) {
 	    System.out.println(e.getMessage());
@@ -122,12 +393,14 @@ public class CachingStatisticsIndexing {
     }
 
     /**
-     * Flushes the index from the memory to the disk.
+     * Flushes the index from the memory to the disk, committing the 
+     * watermark with it.
      * @return null
      */
     private void flushIndex() {
 	try {
 	    writer.optimize();
+	    writer.commit(getCommitData());
 	    writer.close();
 	} catch (Exception e) {
 	    System.out.println("Error flushing index : " + e.getMessage());
@@ -149,82 +422,550 @@ public class CachingStatisticsIndexing {
     }
 
     /**
-     * Adds document to the disk-based index.
+     * Turns bulk-load mode on or off. The writer already open is reopened
+     * with the matching settings; closing it keeps the metadata of the last
+     * commit.
+     * @param bulkLoad Whether the index is bulk loaded.
+     * @return null
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+	try {
+	    this.bulkLoad = bulkLoad;
+	    writer.close();
+	    writer = saveIndex(indexName,false);
+	} catch (Exception e) {
+	    System.out.println("Error reopening index : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Number of documents between two commits of the index.
+     * @return Checkpoint limit in bulk-load mode, flush limit otherwise.
+     */
+    private int getCommitLimit() {
+	return bulkLoad ? checkpointLimit : flushLimit;
+    }
+
+    /**
+     * Commits the documents added so far with the watermark, without 
+     * merging or closing the index, and reports progress.
+     * @return null
+     */
+    private void checkpointIndex() {
+	try {
+	    writer.commit(getCommitData());
+	    printProgress();
+	} catch (Exception e) {
+	    System.out.println("Error checkpointing index : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Prints the number of documents loaded per second and the number of
+     * bytes written to the index since the start of the load.
+     * @return null
+     */
+    private void printProgress() {
+	File [] files = new File(indexName).listFiles();
+	long bytes = 0;
+	if (files != null) {
+	    for(int i=0; i < files.length; i++) {
+		Long seen = fileBytes.get(files[i].getName());
+		if (seen == null || seen < files[i].length())
+		    fileBytes.put(files[i].getName(), files[i].length());
+	    }
+	}
+	Iterator sizes = fileBytes.values().iterator();
+	while(sizes.hasNext())
+	    bytes += (Long) sizes.next();
+	double seconds = Math.max(1, System.currentTimeMillis() - loadStart) / 1000.0;
+	System.out.println(loadedDocs + " documents, " + Math.round(loadedDocs / seconds) + " documents/sec, " + (bytes >> 20) + " MB written, watermark " + watermark);
+    }
+
+    /**
+     * Metadata stored with every commit of the index.
+     * @return Map holding the watermark.
+     */
+    private HashMap<String,String> getCommitData() {
+	HashMap<String,String> commitData = new HashMap<String,String> ();
+	commitData.put(WATERMARK, Long.toString(watermark));
+	return commitData;
+    }
+
+    /**
+     * Reads the watermark of the last commit of the index.
+     * @return Largest element id in the index, 0 if none was recorded.
+     */
+    private long readWatermark() {
+	try {
+	    Map<String,String> commitData = IndexReader.getCommitUserData(writer.getDirectory());
+	    String value = commitData == null ? null : commitData.get(WATERMARK);
+	    return value == null ? 0 : Long.parseLong(value);
+	} catch (Exception e) {
+	    System.out.println("Error reading watermark : " + e.getMessage());
+	    return 0;
+	}
+    }
+
+    /**
+     * Adds document to the disk-based index. The index is not committed
+     * here, see <code>commitIndex</code>.
+     * @param element Id of the element of the document.
      * @param Document Document containing concept identifiers.
      * @param Count Integer specifying the number of documents added.
      * @return Count of the documents added.
      */
-    private long addDocument(Document document, long count) {
+    private long addDocument(long element, Document document, long count) {
 	try {
-	    writer.addDocument(document);
-	    if (count == flushLimit) {
-		resetIndex();
-		return 0;
-	    } else {
-		return count;
-	    }
+	    if (replaceDocuments)
+		writer.updateDocument(new Term("element", NumericUtils.longToPrefixCoded(element)), document);
+	    else
+		writer.addDocument(document);
+	    watermark = Math.max(watermark, element);
+	    loadedDocs ++;
+	    return count;
 	} catch (Exception e) {
 	    System.out.println(e.getMessage());
 	    return -1;
 	}
     }
 
+    /**
+     * Commits the documents added so far : a checkpoint in bulk-load mode,
+     * a reset of the index otherwise.
+     * @return null
+     */
+    private void commitIndex() {
+	if (bulkLoad)
+	    checkpointIndex();
+	else
+	    resetIndex();
+    }
+
+    /**
+     * Writes the concept frequency table next to the index, so that concept
+     * and ontology counts can be answered without searching.
+     * @return null
+     */
+    public void writeConceptFrequencies() {
+	try {
+	    Directory directory = new SimpleFSDirectory(new File(indexName));
+	    IndexReader reader = IndexReader.open(directory,true);
+	    ConceptFrequencies.write(indexName + ".freq", reader, resource.getOntologyRanges());
+	    reader.close();
+	} catch (Exception e) {
+	    System.out.println("Error writing concept frequencies : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Writes the MinHash sketch of every concept next to the index, so that
+     * co-occurrences can be estimated without searching.
+     * @return null
+     */
+    public void writeConceptSketches() {
+	if (sketchBuckets == 0)
+	    return;
+	try {
+	    Directory directory = new SimpleFSDirectory(new File(indexName));
+	    IndexReader reader = IndexReader.open(directory,true);
+	    ConceptSketches.write(indexName + ".sketch", reader, sketchBuckets);
+	    reader.close();
+	} catch (Exception e) {
+	    System.out.println("Error writing concept sketches : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Groups the streamed rows of consecutive elements into documents. The
+     * concepts of an element are collected in an array reused for every
+     * element. The index is committed at the end of a page of the read, once
+     * its result set is closed, as a commit, and above all the optimize of a
+     * reset, would hold the streaming cursor past the server timeouts.
+     */
+    private class DocumentBuilder implements Resource.PageHandler {
+
+	long tempElement = -1;
+
+	long countDocs = 0;
+
+	long [] concepts = new long[64];
+
+	int conceptCount = 0;
+
+	public void handleRow(long element, long concept) {
+	    if (element != tempElement)
+		addElement();
+	    tempElement = element;
+	    if (conceptCount == concepts.length)
+		concepts = Arrays.copyOf(concepts, 2 * concepts.length);
+	    concepts[conceptCount++] = concept;
+	}
+
+	public void endPage() {
+	    if (countDocs >= getCommitLimit()) {
+		commitIndex();
+		countDocs = 0;
+	    }
+	}
+
+	/**
+	 * Adds the document of the element whose rows were read last.
+	 * @return null
+	 */
+	void addElement() {
+	    if (conceptCount == 0)
+		return;
+	    countDocs ++;
+	    Document document = makeDocument(tempElement,concepts,0,conceptCount);
+	    conceptCount = 0;
+	    countDocs = addDocument(tempElement,document,countDocs);
+	}
+    }
+
+    /**
+     * Indexes the elements of a range of element ids. The rows are streamed 
+     * from the resource ordered on the element, so the rows of an element 
+     * are grouped into one document.
+     * @param startIndex First element id to index.
+     * @param endElement Last element id to index.
+     * @return null
+     */
+    private void indexElements(long startIndex, long endElement) {
+	DocumentBuilder builder = new DocumentBuilder();
+	long rows = resource.streamResourceStatistics(tableName,"element_id","concept_id",startIndex,endElement,builder);
+	builder.addElement();
+	System.out.println(rows + " rows");
+    }
+
+    /**
+     * Flushes the index and rewrites the statistics kept next to it.
+     * @return null
+     */
+    private void finishIndex() {
+	flushIndex();
+	if (bulkLoad)
+	    printProgress();
+	writeConceptFrequencies();
+	writeConceptSketches();
+    }
+
     /**
      * Method indexes a given NCBO database resource into a file-based
      * b-tree structure.
      * @return null
      */
     public void resourceIndexer() {
-	Long [] data = null;
-	long tempElement = 1;
-	long countDocs = 0;
-	long countRows = 0;
-	long element = 0,concept;
-	long startIndex = 1;
-	ArrayList<Long> concepts = new ArrayList<Long> ();
-       
-	boolean cont = true;
-
-	while(cont) { 
-	    resultset = resource.getResourceStatistics(tableName,"element_id","concept_id", startIndex);
-
-	    while ((data = resource.getResourceData(resultset)) != null) {
-		countRows ++;
-		element = data[0];
-		concept = data[1];
-		//System.out.println(element);
-		if (element > tempElement) {
-		    //System.out.println(element);
-		    countDocs ++;
-		    Document document = makeDocument(tempElement,concepts);
-		    concepts.clear();
-		    concepts.add(concept);
-		    tempElement = element;
-		    countDocs = addDocument(document,countDocs);
-		} else {
-		    concepts.add(concept);
+	watermark = 0;
+	replaceDocuments = false;
+	loadStart = System.currentTimeMillis();
+	loadedDocs = 0;
+	indexElements(1,Long.MAX_VALUE);
+	finishIndex();
+    }
+
+    /**
+     * Method brings an existing index up to date with the NCBO database
+     * resource. Indexing resumes after the watermark of the last commit, so
+     * an interrupted build or a batch of new annotations only costs the new
+     * elements. Documents replace any earlier document of their element, so
+     * elements indexed before an interruption are not duplicated. The index
+     * has to be opened without creating it.
+     * @return null
+     */
+    public void resourceIndexerIncremental() {
+	watermark = readWatermark();
+	replaceDocuments = true;
+	indexElements(watermark + 1,Long.MAX_VALUE);
+	finishIndex();
+    }
+
+    /**
+     * Method replaces the documents of a range of elements whose annotations
+     * have changed. Elements of the range no longer in the resource are 
+     * removed from the index.
+     * @param fromElement First element id of the range.
+     * @param toElement Last element id of the range.
+     * @return null
+     */
+    public void reindexElements(long fromElement, long toElement) {
+	try {
+	    watermark = readWatermark();
+	    replaceDocuments = true;
+	    writer.deleteDocuments(NumericRangeQuery.newLongRange("element",fromElement,toElement,true,true));
+	    indexElements(fromElement,toElement);
+	    finishIndex();
+	} catch (Exception e) {
+	    System.out.println("Error reindexing elements : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Fetches windows of element ids for the parallel indexer until the 
+     * windows run out. Each reader has its own database connection. A
+     * window that cannot be read is retried on a new connection, after a
+     * growing delay, and after <code>readAttempts</code> attempts the load
+     * fails : every reader stops, which ends the queues.
+     * @param nextWindow Number of the next window to fetch, shared by the readers.
+     * @param startIndex First element id to index.
+     * @param endElement Last element id to index.
+     * @param failed Set once a window cannot be read, to stop the readers.
+     * @param fetched Queue of the windows to be indexed.
+     * @param done Queue of the windows indexed.
+     * @return null
+     */
+    private void readWindows(AtomicLong nextWindow, long startIndex, long endElement, AtomicBoolean failed, BlockingQueue<IndexWindow> fetched, BlockingQueue<IndexWindow> done) {
+	Resource reader = newResource();
+	reader.limit = resource.limit;
+	try {
+	    while (!failed.get()) {
+		long number = nextWindow.getAndIncrement();
+		long windowStart = startIndex + number * reader.limit;
+		if (windowStart > endElement)
+		    break;
+		IndexWindow window = null;
+		for(int attempt=0; window == null && !failed.get(); attempt++) {
+		    if (attempt == readAttempts) {
+			System.out.println("Error reading window " + number + " after " + attempt + " attempts");
+			failed.set(true);
+			return;
+		    }
+		    if (attempt > 0) {
+			// A dead connection fails every query, so the window is read again on a new one.
+			Thread.sleep(retryDelay << (attempt - 1));
+			reader.close();
+			reader = newResource();
+			reader.limit = resource.limit;
+		    }
+		    window = readWindow(reader,number,windowStart,Math.min(endElement, windowStart + reader.limit - 1));
 		}
+		if (window == null)
+		    break;
+		if (window.size == 0)
+		    done.put(window);
+		else
+		    fetched.put(window);
+	    }
+	} catch (Exception e) {
+	    System.out.println("Error reading windows : " + e.getMessage());
+	    failed.set(true);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    /**
+     * Reads a window of element ids, with the rows grouped by element.
+     * @param reader Resource the window is read from.
+     * @param number Position of the window.
+     * @param windowStart First element id of the window.
+     * @param windowEnd Last element id of the window.
+     * @return Window, or null if it could not be read.
+     */
+    private IndexWindow readWindow(Resource reader, long number, long windowStart, long windowEnd) {
+	IndexWindow window = new IndexWindow(number);
+	long countRows = reader.streamResourceStatistics(tableName,"element_id","concept_id", windowStart, windowEnd, window);
+	return countRows == -1 ? null : window;
+    }
 
+    /**
+     * Builds the documents of fetched windows and adds them to the shared
+     * index writer, until the end of the queue. A window that cannot be
+     * indexed fails the load : the readers stop, and the windows still
+     * queued are dropped. The end is always reported, so that the indexer
+     * does not wait for a worker that failed.
+     * @param failed Set once a window cannot be indexed, to stop the readers.
+     * @param fetched Queue of the windows to be indexed.
+     * @param done Queue of the windows indexed.
+     * @return null
+     */
+    private void indexWindows(AtomicBoolean failed, BlockingQueue<IndexWindow> fetched, BlockingQueue<IndexWindow> done) {
+	try {
+	    IndexWindow window;
+	    while ((window = fetched.take()) != END) {
+		// Once the load failed the queue is only drained, so that no reader waits on it.
+		if (failed.get())
+		    continue;
+		// A failed window is never reported done, which holds the watermark before it.
+		try {
+		    for(int i=0; i < window.size; i++) {
+			long element = window.elements[i];
+			Document document = makeDocument(element,window.concepts,window.offsets[i],window.offsets[i + 1]);
+			if (replaceDocuments)
+			    writer.updateDocument(new Term("element", NumericUtils.longToPrefixCoded(element)), document);
+			else
+			    writer.addDocument(document);
+		    }
+		    done.put(window);
+		} catch (InterruptedException e) {
+		    throw e;
+		} catch (Exception e) {
+		    System.out.println("Error indexing window " + window.number + " : " + e);
+		    failed.set(true);
+		}
 	    }
-	    System.out.println(countDocs);
-	    Document document = makeDocument(element,concepts);
-	    concepts.clear();
-	    resetIndex();
-	    if (countRows == 0) {
-		cont = false;
+	} catch (InterruptedException e) {
+	    System.out.println(e.getMessage());
+	} finally {
+	    done.add(END);
+	}
+    }
+
+    /**
+     * Indexes the elements from a starting element id onwards with a 
+     * pipeline : reader threads fetch disjoint windows of element ids into a
+     * bounded queue, and worker threads build their documents and add them
+     * to the shared index writer. The index is committed every 
+     * <code>flushLimit</code> documents, with the watermark of the windows
+     * completed without gaps, so an interrupted run resumes like a 
+     * sequential one.
+     * @param startIndex First element id to index.
+     * @param endElement Last element id to index, or Long.MAX_VALUE for the largest element id of the resource.
+     * @param readers Number of reader threads.
+     * @param workers Number of worker threads.
+     * @return True if every window was read, false if the load failed.
+     */
+    private boolean indexElementsParallel(final long startIndex, long endElement, int readers, int workers) {
+	// Windows are bounded by the largest element id, as gaps between element ids leave windows empty.
+	if (endElement == Long.MAX_VALUE)
+	    endElement = resource.getMaxKey(tableName,"element_id");
+	if (endElement == -1) {
+	    System.out.println("Error indexing in parallel : no largest element id");
+	    return false;
+	}
+	final long lastElement = endElement;
+	final AtomicLong nextWindow = new AtomicLong(0);
+	final AtomicBoolean failed = new AtomicBoolean(false);
+	final AtomicInteger activeReaders = new AtomicInteger(readers);
+	final BlockingQueue<IndexWindow> fetched = new ArrayBlockingQueue<IndexWindow> (2 * workers);
+	final BlockingQueue<IndexWindow> done = new LinkedBlockingQueue<IndexWindow> ();
+	final int workerCount = workers;
+
+	if (!bulkLoad)
+	    writer.setMaxBufferedDocs(flushLimit);
+	for(int i=0; i < readers; i++) {
+	    new Thread("index-reader-" + i) {
+		public void run() {
+		    readWindows(nextWindow,startIndex,lastElement,failed,fetched,done);
+		    // The last reader ends the queue for every worker.
+		    if (activeReaders.decrementAndGet() == 0) {
+			try {
+			    for(int j=0; j < workerCount; j++)
+				fetched.put(END);
+			} catch (InterruptedException e) {
+			    System.out.println(e.getMessage());
+			}
+		    }
+		}
+	    }.start();
+	}
+	for(int i=0; i < workers; i++) {
+	    new Thread("index-worker-" + i) {
+		public void run() {
+		    indexWindows(failed,fetched,done);
+		}
+	    }.start();
+	}
+
+	// Windows complete out of order; the watermark only passes a window
+	// once all windows before it are complete.
+	HashMap<Long,IndexWindow> completed = new HashMap<Long,IndexWindow> ();
+	long contiguous = 0;
+	long countDocs = 0;
+	int finishedWorkers = 0;
+	try {
+	    while (finishedWorkers < workers) {
+		IndexWindow window = done.take();
+		if (window == END) {
+		    finishedWorkers ++;
+		    continue;
+		}
+		// After a failure the watermark stays where it is, and no window is kept for it.
+		if (failed.get()) {
+		    completed.clear();
+		    continue;
+		}
+		completed.put(window.number,window);
+		while ((window = completed.remove(contiguous)) != null) {
+		    if (window.size != 0)
+			watermark = Math.max(watermark, window.elements[window.size - 1]);
+		    countDocs += window.size;
+		    loadedDocs += window.size;
+		    contiguous ++;
+		}
+		if (countDocs >= getCommitLimit()) {
+		    checkpointIndex();
+		    countDocs = 0;
+		}
 	    }
-	    else
-		countRows = 0;
-	    startIndex += resource.limit;
-	    resetIndex();
+	} catch (Exception e) {
+	    System.out.println("Error indexing in parallel : " + e.getMessage());
+	    return false;
 	}
-	flushIndex();
+	return !failed.get();
+    }
+
+    /**
+     * Method indexes a given NCBO database resource into a file-based
+     * b-tree structure with a parallel pipeline.
+     * @param readers Number of reader threads, each with its own database connection.
+     * @param workers Number of threads building documents.
+     * @return null
+     */
+    public void resourceIndexerParallel(int readers, int workers) {
+	watermark = 0;
+	replaceDocuments = false;
+	loadStart = System.currentTimeMillis();
+	loadedDocs = 0;
+	if (!indexElementsParallel(1,Long.MAX_VALUE,readers,workers)) {
+	    // The watermark holds before the first window not indexed.
+	    flushIndex();
+	    System.out.println("Parallel load failed, the index is committed up to element " + watermark + " : resume it with -incremental");
+	    return;
+	}
+	finishIndex();
     }
 
     public static void main(String [] args) {
 	long time = System.currentTimeMillis();
-	CachingStatisticsIndexing csi = new CachingStatisticsIndexing("obr_bsm_annotation","numeric-index-bsm",true);
-	csi.resourceIndexer();
+	// With -incremental the existing index is brought up to date instead of 
+	// rebuilt, with -parallel it is rebuilt by a pipeline of threads, and with
+	// -bulk it is loaded with bulk-load settings. With -dump directory the 
+	// database is read from the local dumps of a FileResource.
+	boolean incremental = false;
+	boolean parallel = false;
+	boolean bulk = false;
+	String dumpDirectory = null;
+	ArrayList<String> ontologyIds = new ArrayList<String> ();
+	for(int i=0; i < args.length; i++) {
+	    if (args[i].equals("-incremental"))
+		incremental = true;
+	    else if (args[i].equals("-parallel"))
+		parallel = true;
+	    else if (args[i].equals("-bulk"))
+		bulk = true;
+	    else if (args[i].equals("-dump"))
+		dumpDirectory = args[++i];
+	    else
+		ontologyIds.add(args[i]);
+	}
+	CachingStatisticsIndexing csi = new CachingStatisticsIndexing("obr_bsm_annotation","numeric-index-bsm",!incremental,dumpDirectory);
+	if (bulk)
+	    csi.setBulkLoad(true);
+	// Ontology identifiers given as arguments have their hierarchy propagated.
+	if (ontologyIds.size() > 0) {
+	    ArrayList<GraphADS> ontologies = new ArrayList<GraphADS> ();
+	    for(int i=0; i < ontologyIds.size(); i++)
+		ontologies.add(dumpDirectory == null ? new GraphADS(ontologyIds.get(i)) : new GraphADS(ontologyIds.get(i),csi.resource));
+	    csi.propagateHierarchy(ontologies);
+	}
+	int processors = Runtime.getRuntime().availableProcessors();
+	if (incremental)
+	    csi.resourceIndexerIncremental();
+	else if (parallel)
+	    csi.resourceIndexerParallel(Math.max(2, processors / 2), processors);
+	else
+	    csi.resourceIndexer();
 	System.out.println(time - System.currentTimeMillis());
 
     }
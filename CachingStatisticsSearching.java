@@ -7,12 +7,16 @@ package ammo;
 
 import java.io.File;
 
+import java.util.ArrayList;
+
 import ammo.CountCollector;
 
 import org.apache.lucene.store.Directory;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -23,15 +27,23 @@ import org.apache.lucene.search.BooleanFilter;
 import org.apache.lucene.search.FilterClause;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
 
 /**
  *  The <code>CachingStatisticsSearching</code> class encapsulates the idea of searching a B-Tree index from database available at the National Center Of Biomedical Ontology (NCBO). 
  *
+ * <p>Thread-safety : once constructed, all count methods may be called concurrently from any number of threads. The read-only <code>IndexSearcher</code> and the memory-mapped frequency table are shared; the collectors and the filters a count needs are kept per thread and reused across calls. The counting mode has to be set before the searcher is shared. For many threads open the index with <code>concurrent</code> set, so that reads go through a memory-mapped (or NIO) directory instead of the synchronized file pointer of <code>SimpleFSDirectory</code>.
+ *
  * @author Kshitij Marwah (ksm@mit.edu)
  * @version 1.0
  */
 
-public class CachingStatisticsSearching {
+public class CachingStatisticsSearching implements StatisticsSearching {
 
     /**
      * Handler to the disk-based B-tree data structure for searching.
@@ -39,20 +51,104 @@ public class CachingStatisticsSearching {
      */
     public IndexSearcher searcher;
 
+    /**
+     * Whether <code>getCountsUnderContext</code> fills the 2^k table in a
+     * single pass over the context elements instead of running two 
+     * filtered searches per table entry.
+     */
+    boolean singlePassCounting = true;
+
+    /**
+     * Memory-mapped concept frequency table written next to the index, or
+     * null if there is none.
+     */
+    ConceptFrequencies frequencies;
+
+    /**
+     * Whether the index was built with hierarchy propagation, i.e. has an
+     * <code>ancestors</code> field.
+     */
+    boolean hasAncestors;
+
+    /**
+     * Number of filters each thread keeps for reuse.
+     */
+    static final int FILTER_CACHE_SIZE = 256;
+
+    /**
+     * Collectors and filters reused by the calls of one thread.
+     */
+    ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState> () {
+	protected ThreadState initialValue() {
+	    return new ThreadState();
+	}
+    };
+
     /**
      * Constructor initializes the handler for searching the disk-based 
      * B-tree index.
      */
     public CachingStatisticsSearching(String indexName) {
+	this(indexName,false);
+    }
+
+    /**
+     * Constructor initializes the handler for searching the disk-based 
+     * B-tree index.
+     * @param indexName Name of the file containing the index.
+     * @param concurrent True to open the index through a directory that 
+     * serves concurrent reads.
+     */
+    public CachingStatisticsSearching(String indexName, boolean concurrent) {
 	try {
 	    File file = new File(indexName);
-	    Directory directory = new SimpleFSDirectory(file);
+	    Directory directory;
+	    if (!concurrent)
+		directory = new SimpleFSDirectory(file);
+	    else if (System.getProperty("os.arch").indexOf("64") >= 0)
+		directory = new MMapDirectory(file);
+	    else
+		// Mapping a large index does not fit the address space of a 32-bit JVM.
+		directory = new NIOFSDirectory(file);
 	    searcher = new IndexSearcher(directory,true);
+	    TermEnum terms = searcher.getIndexReader().terms(new Term("ancestors", NumericUtils.longToPrefixCoded(Long.MIN_VALUE)));
+	    hasAncestors = terms.term() != null && terms.term().field().equals("ancestors");
+	    terms.close();
+	    frequencies = ConceptFrequencies.open(indexName + ".freq");
+	    if (frequencies != null && frequencies.indexVersion != searcher.getIndexReader().getVersion()) {
+		System.out.println("Ignoring stale concept frequencies of " + indexName);
+		frequencies = null;
+	    }
 	} catch (Exception e) {
 	    System.out.println("Exception1 : " + e.getMessage());
 	}
     }
 
+    /**
+     * Gets the count collector of the calling thread, reset to zero.
+     * @return Reusable count collector.
+     */
+    private CountCollector getCountCollector() {
+	CountCollector counts = threadState.get().counts;
+	counts.reset();
+	return counts;
+    }
+
+    /**
+     * Gets a bitset collector of the calling thread, cleared.
+     * @param slot Index of the collector, for calls needing several at once.
+     * @param maxDoc Number of documents in the index.
+     * @return Reusable bitset collector.
+     */
+    private BitSetCollector getBitSetCollector(int slot, int maxDoc) {
+	ArrayList<BitSetCollector> bitSets = threadState.get().bitSets;
+	while (bitSets.size() <= slot)
+	    bitSets.add(new BitSetCollector(maxDoc));
+	BitSetCollector collector = bitSets.get(slot);
+	collector.reset();
+	return collector;
+    }
+
     /**
      * Initializes a hashmap filter for efficient searching.
      * @param concept Concept to be searched.
@@ -61,6 +157,15 @@ public class CachingStatisticsSearching {
      */
     public Filter getBitMapHashFilter(long concept, long length) {
 	try {
+	    if (length == 0) {
+		MemoizingStatisticsSearching.BoundedCache<Long,Filter> filters = threadState.get().filters;
+		Filter filter = filters.get(concept);
+		if (filter == null) {
+		    filter = NumericRangeFilter.newLongRange("concepts", concept,concept, true,true);
+		    filters.put(concept,filter);
+		}
+		return filter;
+	    }
 	    return NumericRangeFilter.newLongRange("concepts", concept,concept+length, true,true);
 	} catch (Exception e) {
 	    System.out.println("Exception2 : " + e.getMessage());
@@ -124,7 +229,7 @@ public class CachingStatisticsSearching {
 	    booleanFilter1.add(new FilterClause(getBitMapHashFilter(contextConcept,0), BooleanClause.Occur.MUST));
 	    booleanFilter0.add(new FilterClause(getBitMapHashFilter(contextConcept,0), BooleanClause.Occur.MUST));
 	    long pConcept = -1;
-	    CountCollector counts = new CountCollector();
+	    CountCollector counts = getCountCollector();
 
 	    for(long start = 0; start < iLength; start++) { 
 		int istart = (int) start;
@@ -145,6 +250,7 @@ public class CachingStatisticsSearching {
 		booleanFilter0.add(new FilterClause(getBitMapHashFilter(childConcept,0), BooleanClause.Occur.MUST_NOT));
 		searcher.search(generateQuery(pConcept,0),booleanFilter0,counts);
 		Count[0] = counts.count;
+		counts.reset();
 	    } 
 	    searcher.search(generateQuery(childConcept,0),booleanFilter1,counts);
 	    Count[1] = counts.count;
@@ -156,6 +262,52 @@ public class CachingStatisticsSearching {
 }
 
    
+    /**
+     * Sets the counting mode of <code>getCountsUnderContext</code>.
+     * @param singlePassCounting True to count in a single pass over the context.
+     * @return null.
+     */
+    public void setSinglePassCounting(boolean singlePassCounting) {
+	this.singlePassCounting = singlePassCounting;
+    }
+
+    /**
+     * Method to get counts for a concept and the parents under a given context
+     * in a single pass. The elements of the context, and those of every
+     * parent and of the child within the context, are collected into bitsets
+     * with k+2 searches; each context element is then assigned to the table 
+     * entry given by the parents and child it contains.
+     * @param parentConcept Array of parent concepts in a given ontology. 
+     * @param childConcept Child concept for a given ontology.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Long-array representing the possible counts.
+     */
+    private long [] getCountsUnderContextSinglePass(long [] parentConcept, long childConcept, long contextConcept) throws Exception {
+	int maxDoc = searcher.getIndexReader().maxDoc();
+	int pLength = parentConcept.length;
+	long [] Count = new long[2*(1 << pLength)];
+	BitSetCollector context = getBitSetCollector(0,maxDoc);
+	searcher.search(generateQuery(contextConcept,0), context);
+	Filter contextFilter = getBitMapHashFilter(contextConcept,0);
+	OpenBitSet [] parents = new OpenBitSet[pLength];
+	for(int i=0; i < pLength; i++) {
+	    BitSetCollector parent = getBitSetCollector(i + 2,maxDoc);
+	    searcher.search(generateQuery(parentConcept[i],0), contextFilter, parent);
+	    parents[i] = parent.bits;
+	}
+	BitSetCollector child = getBitSetCollector(1,maxDoc);
+	searcher.search(generateQuery(childConcept,0), contextFilter, child);
+
+	for(int doc = context.bits.nextSetBit(0); doc >= 0; doc = context.bits.nextSetBit(doc + 1)) {
+	    // The first parent is the most significant bit of the instance.
+	    int instance = 0;
+	    for(int i=0; i < pLength; i++) 
+		instance = (instance << 1) | (parents[i].fastGet(doc) ? 1 : 0);
+	    Count[2*instance + (child.bits.fastGet(doc) ? 1 : 0)] ++;
+	}
+	return Count;
+    }
+
     /**
      * Method to get counts for a concept and the parents under a given context.
      * @param parentConcept Array of parent concepts in a given ontology. 
@@ -165,11 +317,13 @@ public class CachingStatisticsSearching {
      */
     public long [] getCountsUnderContext(long [] parentConcept, long childConcept, long contextConcept) {
 	try {
+	if (singlePassCounting)
+	    return getCountsUnderContextSinglePass(parentConcept, childConcept, contextConcept);
 	long pLength = parentConcept.length;
 	long iLength = (long) Math.pow(2.0,(double) pLength);
 	long [] Count = new long[2*((int)iLength)];
 	long sum = 0;
-	CountCollector counts = new CountCollector();
+	CountCollector counts = getCountCollector();
 	searcher.search(generateQuery(contextConcept,0), counts);
 	
 	long contextCount = counts.count;
@@ -195,6 +349,96 @@ public class CachingStatisticsSearching {
 	}
     }
 
+    /**
+     * Method to get the counts of a source concept against every concept of
+     * a destination ontology under a given context. The context and the
+     * source under the context are collected once into bitsets, and the 
+     * postings of the destination concepts are then walked in a single pass
+     * over the destination id range.
+     * @param sourceConcept Source concept acting as the single parent.
+     * @param contextConcept Context concept for a given ontology.
+     * @param startIndex Starting concept identifier of the destination ontology.
+     * @param length Total number of concepts in the destination ontology.
+     * @return Long-array with four counts per destination concept.
+     */
+    public long [] getDestinationCountsUnderContext(long sourceConcept, long contextConcept, long startIndex, long length) {
+	try {
+	    IndexReader reader = searcher.getIndexReader();
+	    int maxDoc = reader.maxDoc();
+	    BitSetCollector context = getBitSetCollector(0,maxDoc);
+	    searcher.search(generateQuery(contextConcept,0), context);
+	    BitSetCollector sourceContext = getBitSetCollector(1,maxDoc);
+	    searcher.search(generateQuery(sourceConcept,0), getBitMapHashFilter(contextConcept,0), sourceContext);
+	    long contextCount = context.bits.cardinality();
+	    long sourceCount = sourceContext.bits.cardinality();
+
+	    long [] Count = new long[4*((int) length)];
+	    TermEnum terms = reader.terms(new Term("concepts", NumericUtils.longToPrefixCoded(startIndex)));
+	    TermDocs termDocs = reader.termDocs();
+	    try {
+		do {
+		    Term term = terms.term();
+		    if (term == null || !term.field().equals("concepts") || term.text().charAt(0) != NumericUtils.SHIFT_START_LONG)
+			break;
+		    long concept = NumericUtils.prefixCodedToLong(term.text());
+		    if (concept >= startIndex + length)
+			break;
+		    long destinationCount = 0;
+		    long jointCount = 0;
+		    termDocs.seek(terms);
+		    while (termDocs.next()) {
+			int doc = termDocs.doc();
+			if (context.bits.fastGet(doc)) {
+			    destinationCount ++;
+			    if (sourceContext.bits.fastGet(doc))
+				jointCount ++;
+			}
+		    }
+		    int offset = 4*((int) (concept - startIndex));
+		    Count[offset + 3] = jointCount;
+		    Count[offset + 1] = destinationCount - jointCount;
+		} while (terms.next());
+	    } finally {
+		termDocs.close();
+		terms.close();
+	    }
+	    // Destinations without postings are left with zero joint counts.
+	    for(int offset = 0; offset < Count.length; offset += 4) {
+		Count[offset + 2] = sourceCount - Count[offset + 3];
+		Count[offset] = contextCount - Count[offset + 1] - Count[offset + 2] - Count[offset + 3];
+	    }
+	    return Count;
+	} catch (Exception e) {
+	    System.out.println("Exception8 : " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Method to get the number of elements annotated with a source concept
+     * and with a concept in the subtree of a destination concept, under a 
+     * given context. The subtree is a single term of the ancestors field.
+     * @param sourceConcept Source concept for a given ontology.
+     * @param subtreeConcept Root of the destination subtree.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Count for the subtree, or -1 if the index has no propagated hierarchy.
+     */
+    public long getSubtreeCountUnderContext(long sourceConcept, long subtreeConcept, long contextConcept) {
+	if (!hasAncestors)
+	    return -1;
+	try {
+	    BooleanFilter booleanFilter = new BooleanFilter();
+	    booleanFilter.add(new FilterClause(getBitMapHashFilter(contextConcept,0), BooleanClause.Occur.MUST));
+	    booleanFilter.add(new FilterClause(getBitMapHashFilter(sourceConcept,0), BooleanClause.Occur.MUST));
+	    CountCollector counts = getCountCollector();
+	    searcher.search(NumericRangeQuery.newLongRange("ancestors",subtreeConcept,subtreeConcept,true,true),booleanFilter,counts);
+	    return (long) counts.count;
+	} catch (Exception e) {
+	    System.out.println("Exception9 : " + e.getMessage());
+	    return -1;
+	}
+    }
+
     /**
      * Getting total concept count in the data-structure for a given ontology.
      * @param concept Starting concept identifier for a given ontology.
@@ -203,7 +447,12 @@ public class CachingStatisticsSearching {
      */
     public long getTotalConceptCount(long concept, long length) {
 	try {
-	    CountCollector counts = new CountCollector();
+	    if (frequencies != null) {
+		long count = frequencies.getTotalConceptCount(concept,length);
+		if (count >= 0)
+		    return count;
+	    }
+	    CountCollector counts = getCountCollector();
 	    searcher.search(generateQuery(concept,length),counts);
 	    return (long) counts.count;
 	} catch(Exception e) {
@@ -220,7 +469,9 @@ public class CachingStatisticsSearching {
      */
     public long getConceptCount(long concept) {
 	try {
-	    CountCollector counts = new CountCollector();
+	    if (frequencies != null)
+		return frequencies.getConceptCount(concept);
+	    CountCollector counts = getCountCollector();
 	    searcher.search(generateQuery(concept,0),counts);
 	    return (long) counts.count;
 	} catch(Exception e) {
@@ -230,6 +481,18 @@ public class CachingStatisticsSearching {
 
     }
 
+    /**
+     * Collectors and filters owned by one thread.
+     */
+    static class ThreadState {
+
+	CountCollector counts = new CountCollector();
+
+	ArrayList<BitSetCollector> bitSets = new ArrayList<BitSetCollector> ();
+
+	MemoizingStatisticsSearching.BoundedCache<Long,Filter> filters = new MemoizingStatisticsSearching.BoundedCache<Long,Filter>(FILTER_CACHE_SIZE);
+    }
+
     public static void main(String[] args) throws Exception {
 	long time = System.currentTimeMillis();
 	 CachingStatisticsSearching css = new CachingStatisticsSearching("./numeric-index-all-EAT-OBR");
@@ -0,0 +1,244 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The <code>ChannelMappingSink</code> class streams mappings to a file or an
+ * output stream through a bounded buffer. Records are either tab-separated
+ * lines (identifier, name and information content of the source,
+ * destination and context concepts, then the Bayes factor) or fixed-size
+ * binary records of three longs and four doubles after an 8-byte header.
+ * The buffer is written out when full, and by the first write coming more
+ * than <code>FLUSH_INTERVAL</code> milliseconds after the last write out;
+ * mappings written before a pause stay in the buffer until the next write
+ * or <code>flush</code>. <code>flush</code> also forces a file to disk, and
+ * gives the length up to which the output is complete.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class ChannelMappingSink implements MappingSink {
+
+    /**
+     * Identifies a binary mapping file, "AMMR".
+     */
+    static final int MAGIC = 0x414d4d52;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int RECORD_SIZE = 56;
+
+    /**
+     * Default buffer size in bytes.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Time in milliseconds after which a write also writes out the buffer.
+     */
+    static final long FLUSH_INTERVAL = 5000;
+
+    /**
+     * Output file, or null for a stream.
+     */
+    FileChannel file;
+
+    WritableByteChannel channel;
+
+    ByteBuffer buffer;
+
+    boolean binary;
+
+    /**
+     * Names of the concepts for tab-separated records.
+     */
+    IdMaps sourceIdMap;
+
+    IdMaps destinationIdMap;
+
+    IdMaps contextIdMap;
+
+    /**
+     * Bytes written out, and time of the last write out.
+     */
+    long written;
+
+    long lastFlush;
+
+    /**
+     * Constructor for a sink appending to a file, truncated to a given length
+     * first, e.g. that of a checkpoint.
+     * @param fileName Name of the file.
+     * @param binary True for binary records, false for tab-separated lines.
+     * @param length Length the file is truncated to, 0 for a new file, or -1
+     * to keep the file whole until <code>truncate</code> is called.
+     * @param sourceIdMap Names of the source concepts.
+     * @param destinationIdMap Names of the destination concepts.
+     * @param contextIdMap Names of the context concepts.
+     */
+    public ChannelMappingSink(String fileName, boolean binary, long length, IdMaps sourceIdMap, IdMaps destinationIdMap, IdMaps contextIdMap) throws IOException {
+	this.file = new RandomAccessFile(fileName,"rw").getChannel();
+	this.channel = file;
+	this.binary = binary;
+	this.sourceIdMap = sourceIdMap;
+	this.destinationIdMap = destinationIdMap;
+	this.contextIdMap = contextIdMap;
+	this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	if (length < 0) {
+	    this.written = file.size();
+	    file.position(written);
+	} else
+	    truncate(length);
+	this.lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructor for a sink of tab-separated lines to a stream, e.g.
+     * <code>System.out</code>.
+     * @param out Output stream.
+     * @param sourceIdMap Names of the source concepts.
+     * @param destinationIdMap Names of the destination concepts.
+     * @param contextIdMap Names of the context concepts.
+     */
+    public ChannelMappingSink(OutputStream out, IdMaps sourceIdMap, IdMaps destinationIdMap, IdMaps contextIdMap) {
+	this.channel = Channels.newChannel(out);
+	this.binary = false;
+	this.sourceIdMap = sourceIdMap;
+	this.destinationIdMap = destinationIdMap;
+	this.contextIdMap = contextIdMap;
+	this.buffer = ByteBuffer.allocate(1 << 16);
+	this.lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to write a mapping into the buffer, writing the buffer out when
+     * it is full or old.
+     */
+    public synchronized void write(long sourceConcept, double sourceInfo, long destinationConcept, double destinationInfo, long contextConcept, double contextInfo, double bayesFactor) {
+	try {
+	    if (binary) {
+		if (buffer.remaining() < RECORD_SIZE)
+		    drain();
+		buffer.putLong(sourceConcept);
+		buffer.putLong(destinationConcept);
+		buffer.putLong(contextConcept);
+		buffer.putDouble(sourceInfo);
+		buffer.putDouble(destinationInfo);
+		buffer.putDouble(contextInfo);
+		buffer.putDouble(bayesFactor);
+	    } else {
+		StringBuilder line = new StringBuilder(128);
+		line.append(sourceConcept).append('\t').append(getName(sourceIdMap,sourceConcept)).append('\t').append(sourceInfo).append('\t');
+		line.append(destinationConcept).append('\t').append(getName(destinationIdMap,destinationConcept)).append('\t').append(destinationInfo).append('\t');
+		line.append(contextConcept).append('\t').append(getName(contextIdMap,contextConcept)).append('\t').append(contextInfo).append('\t');
+		line.append(bayesFactor).append('\n');
+		byte [] bytes = line.toString().getBytes("UTF-8");
+		if (buffer.remaining() < bytes.length)
+		    drain();
+		if (bytes.length > buffer.capacity())
+		    write(ByteBuffer.wrap(bytes));
+		else
+		    buffer.put(bytes);
+	    }
+	    if (System.currentTimeMillis() - lastFlush > FLUSH_INTERVAL)
+		drain();
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write mappings : " + e.getMessage(),e);
+	}
+    }
+
+    /**
+     * Method to drop the buffered mappings and cut the file to a given
+     * length, the mappings after it being written again.
+     * @param length Length of the file, 0 to start it again.
+     * @return null.
+     */
+    public synchronized void truncate(long length) throws IOException {
+	if (length > file.size())
+	    throw new IOException("Output of " + file.size() + " bytes shorter than " + length);
+	buffer.clear();
+	file.truncate(length);
+	file.position(length);
+	written = length;
+	if (binary && length == 0) {
+	    buffer.putInt(MAGIC);
+	    buffer.putInt(VERSION);
+	}
+    }
+
+    /**
+     * Method to write out the buffer and force a file to disk.
+     */
+    public synchronized long flush() {
+	try {
+	    drain();
+	    if (file != null)
+		file.force(false);
+	    return written;
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write mappings : " + e.getMessage(),e);
+	}
+    }
+
+    /**
+     * Method to flush and close the file. A stream is left open.
+     */
+    public synchronized void close() {
+	flush();
+	try {
+	    if (file != null)
+		file.close();
+	} catch (IOException e) {
+	    System.out.println("Exception : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Writes out the buffer.
+     * @return null.
+     */
+    private void drain() throws IOException {
+	buffer.flip();
+	write(buffer);
+	buffer.clear();
+	lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes out all the bytes of a buffer.
+     * @param bytes Buffer.
+     * @return null.
+     */
+    private void write(ByteBuffer bytes) throws IOException {
+	while (bytes.hasRemaining())
+	    written += channel.write(bytes);
+    }
+
+    /**
+     * Name of a concept, with no tab or line break to break the record.
+     * @param idMap Names of the concepts, or null.
+     * @param concept Concept identifier.
+     * @return Name, or an empty string.
+     */
+    private String getName(IdMaps idMap, long concept) {
+	String name = idMap == null ? null : idMap.getName(Long.valueOf(concept));
+	if (name == null)
+	    return "";
+	return name.replace('\t',' ').replace('\n',' ').replace('\r',' ');
+    }
+
+}
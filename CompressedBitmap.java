@@ -0,0 +1,380 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.util.Arrays;
+
+/**
+ * The <code>CompressedBitmap</code> class is a roaring-style compressed
+ * bitmap of element identifiers. Identifiers are partitioned on their high
+ * 16 bits into containers; a container holds a sorted array of the low 16
+ * bits while it is sparse, and switches to a plain 65536-bit bitmap once it
+ * holds more than <code>ARRAY_LIMIT</code> identifiers.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class CompressedBitmap {
+
+    /**
+     * Maximum cardinality of an array container.
+     */
+    static final int ARRAY_LIMIT = 4096;
+
+    /**
+     * Number of 64-bit words in a bitmap container.
+     */
+    static final int BITMAP_WORDS = 1024;
+
+    /**
+     * Sorted high 16 bits of the containers.
+     */
+    char [] keys;
+
+    /**
+     * Cardinality of each container.
+     */
+    int [] cardinalities;
+
+    /**
+     * Sorted low 16 bits of each array container, null for bitmap containers.
+     */
+    char [][] arrays;
+
+    /**
+     * Words of each bitmap container, null for array containers.
+     */
+    long [][] bitmaps;
+
+    /**
+     * Number of containers in use.
+     */
+    int size;
+
+    /**
+     * Constructor initializes an empty bitmap.
+     */
+    public CompressedBitmap() {
+	this(4);
+    }
+
+    private CompressedBitmap(int capacity) {
+	keys = new char[capacity];
+	cardinalities = new int[capacity];
+	arrays = new char[capacity][];
+	bitmaps = new long[capacity][];
+	size = 0;
+    }
+
+    /**
+     * Appends an identifier to the bitmap. Identifiers have to be added in
+     * increasing order, which is the order documents come out of an index.
+     * @param value Non-negative identifier larger than the ones added so far.
+     */
+    public void add(int value) {
+	char high = (char) (value >>> 16);
+	char low = (char) value;
+	if (size == 0 || keys[size - 1] != high) {
+	    ensureCapacity(size + 1);
+	    keys[size] = high;
+	    cardinalities[size] = 0;
+	    arrays[size] = new char[4];
+	    bitmaps[size] = null;
+	    size ++;
+	}
+	int i = size - 1;
+	if (arrays[i] != null) {
+	    if (cardinalities[i] == ARRAY_LIMIT) {
+		bitmaps[i] = toBitmap(arrays[i], cardinalities[i]);
+		arrays[i] = null;
+	    } else {
+		if (cardinalities[i] == arrays[i].length)
+		    arrays[i] = Arrays.copyOf(arrays[i], Math.min(ARRAY_LIMIT, 2 * arrays[i].length));
+		arrays[i][cardinalities[i]] = low;
+		cardinalities[i] ++;
+		return;
+	    }
+	}
+	bitmaps[i][low >>> 6] |= 1L << low;
+	cardinalities[i] ++;
+    }
+
+    /**
+     * Releases the spare capacity left over from building the bitmap.
+     */
+    public void trim() {
+	for(int i=0; i < size; i++) {
+	    if (arrays[i] != null && arrays[i].length != cardinalities[i])
+		arrays[i] = Arrays.copyOf(arrays[i], cardinalities[i]);
+	}
+	if (keys.length != size) {
+	    keys = Arrays.copyOf(keys, size);
+	    cardinalities = Arrays.copyOf(cardinalities, size);
+	    arrays = Arrays.copyOf(arrays, size);
+	    bitmaps = Arrays.copyOf(bitmaps, size);
+	}
+    }
+
+    /**
+     * Tests if the bitmap contains a given identifier.
+     * @param value Identifier to be tested.
+     * @return True if the identifier is in the bitmap.
+     */
+    public boolean contains(int value) {
+	int i = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+	if (i < 0)
+	    return false;
+	char low = (char) value;
+	if (arrays[i] != null)
+	    return Arrays.binarySearch(arrays[i], 0, cardinalities[i], low) >= 0;
+	return (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Number of identifiers in the bitmap.
+     * @return Cardinality of the bitmap.
+     */
+    public long cardinality() {
+	long count = 0;
+	for(int i=0; i < size; i++)
+	    count += cardinalities[i];
+	return count;
+    }
+
+    /**
+     * Intersection of this bitmap with another one.
+     * @param other Bitmap to intersect with.
+     * @return New bitmap holding identifiers present in both.
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+	CompressedBitmap result = new CompressedBitmap(Math.max(1, Math.min(size, other.size)));
+	int i = 0, j = 0;
+	while (i < size && j < other.size) {
+	    if (keys[i] < other.keys[j])
+		i ++;
+	    else if (keys[i] > other.keys[j])
+		j ++;
+	    else {
+		result.appendAnd(keys[i], this, i, other, j, false);
+		i ++;
+		j ++;
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * Difference of this bitmap and another one.
+     * @param other Bitmap whose identifiers are removed.
+     * @return New bitmap holding identifiers present only in this bitmap.
+     */
+    public CompressedBitmap andNot(CompressedBitmap other) {
+	CompressedBitmap result = new CompressedBitmap(Math.max(1, size));
+	int j = 0;
+	for(int i=0; i < size; i++) {
+	    while (j < other.size && other.keys[j] < keys[i])
+		j ++;
+	    if (j < other.size && other.keys[j] == keys[i])
+		result.appendAnd(keys[i], this, i, other, j, true);
+	    else
+		result.appendCopy(keys[i], this, i);
+	}
+	return result;
+    }
+
+    /**
+     * Cardinality of the intersection of this bitmap with another one,
+     * computed without materializing the intersection.
+     * @param other Bitmap to intersect with.
+     * @return Number of identifiers present in both.
+     */
+    public long andCardinality(CompressedBitmap other) {
+	long count = 0;
+	int i = 0, j = 0;
+	while (i < size && j < other.size) {
+	    if (keys[i] < other.keys[j])
+		i ++;
+	    else if (keys[i] > other.keys[j])
+		j ++;
+	    else {
+		count += containerAndCardinality(this, i, other, j);
+		i ++;
+		j ++;
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * Sets the bits of all identifiers of this bitmap in a flat word array.
+     * @param words Flat bitset large enough to hold every identifier.
+     */
+    public void orInto(long [] words) {
+	for(int i=0; i < size; i++) {
+	    int base = keys[i] << 10;
+	    if (arrays[i] != null) {
+		for(int k=0; k < cardinalities[i]; k++) {
+		    int value = (keys[i] << 16) | arrays[i][k];
+		    words[value >>> 6] |= 1L << value;
+		}
+	    } else {
+		long [] bitmap = bitmaps[i];
+		int limit = Math.min(BITMAP_WORDS, words.length - base);
+		for(int k=0; k < limit; k++)
+		    words[base + k] |= bitmap[k];
+	    }
+	}
+    }
+
+    /**
+     * Helper function to grow the container arrays.
+     * @param capacity Required number of containers.
+     */
+    private void ensureCapacity(int capacity) {
+	if (capacity <= keys.length)
+	    return;
+	int newCapacity = Math.max(capacity, 2 * keys.length);
+	keys = Arrays.copyOf(keys, newCapacity);
+	cardinalities = Arrays.copyOf(cardinalities, newCapacity);
+	arrays = Arrays.copyOf(arrays, newCapacity);
+	bitmaps = Arrays.copyOf(bitmaps, newCapacity);
+    }
+
+    /**
+     * Helper function to convert a sorted array container into a bitmap.
+     */
+    private static long [] toBitmap(char [] array, int cardinality) {
+	long [] bitmap = new long[BITMAP_WORDS];
+	for(int k=0; k < cardinality; k++)
+	    bitmap[array[k] >>> 6] |= 1L << array[k];
+	return bitmap;
+    }
+
+    /**
+     * Helper function to append a copy of a container of another bitmap.
+     */
+    private void appendCopy(char key, CompressedBitmap source, int i) {
+	ensureCapacity(size + 1);
+	keys[size] = key;
+	cardinalities[size] = source.cardinalities[i];
+	arrays[size] = source.arrays[i];
+	bitmaps[size] = source.bitmaps[i];
+	size ++;
+    }
+
+    /**
+     * Helper function to append the intersection (or difference if
+     * <code>negate</code> is set) of two containers as a new container.
+     */
+    private void appendAnd(char key, CompressedBitmap a, int i, CompressedBitmap b, int j, boolean negate) {
+	char [] result;
+	int count = 0;
+	if (a.arrays[i] != null) {
+	    char [] array = a.arrays[i];
+	    result = new char[a.cardinalities[i]];
+	    for(int k=0; k < a.cardinalities[i]; k++) {
+		if (b.containerContains(j, array[k]) != negate)
+		    result[count ++] = array[k];
+	    }
+	} else if (!negate && b.arrays[j] != null) {
+	    char [] array = b.arrays[j];
+	    long [] bitmap = a.bitmaps[i];
+	    result = new char[b.cardinalities[j]];
+	    for(int k=0; k < b.cardinalities[j]; k++) {
+		if ((bitmap[array[k] >>> 6] & (1L << array[k])) != 0)
+		    result[count ++] = array[k];
+	    }
+	} else {
+	    long [] bitmap = new long[BITMAP_WORDS];
+	    long [] bBitmap = b.bitmaps[j] != null ? b.bitmaps[j] : toBitmap(b.arrays[j], b.cardinalities[j]);
+	    for(int k=0; k < BITMAP_WORDS; k++) {
+		bitmap[k] = negate ? a.bitmaps[i][k] & ~bBitmap[k] : a.bitmaps[i][k] & bBitmap[k];
+		count += Long.bitCount(bitmap[k]);
+	    }
+	    if (count == 0)
+		return;
+	    ensureCapacity(size + 1);
+	    keys[size] = key;
+	    cardinalities[size] = count;
+	    if (count > ARRAY_LIMIT) {
+		arrays[size] = null;
+		bitmaps[size] = bitmap;
+	    } else {
+		char [] array = new char[count];
+		int n = 0;
+		for(int k=0; k < BITMAP_WORDS; k++) {
+		    long word = bitmap[k];
+		    while (word != 0) {
+			array[n ++] = (char) ((k << 6) + Long.numberOfTrailingZeros(word));
+			word &= word - 1;
+		    }
+		}
+		arrays[size] = array;
+		bitmaps[size] = null;
+	    }
+	    size ++;
+	    return;
+	}
+	if (count == 0)
+	    return;
+	ensureCapacity(size + 1);
+	keys[size] = key;
+	cardinalities[size] = count;
+	arrays[size] = count == result.length ? result : Arrays.copyOf(result, count);
+	bitmaps[size] = null;
+	size ++;
+    }
+
+    /**
+     * Helper function to test membership of a low 16-bit value in a container.
+     */
+    private boolean containerContains(int i, char low) {
+	if (arrays[i] != null)
+	    return Arrays.binarySearch(arrays[i], 0, cardinalities[i], low) >= 0;
+	return (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Helper function to count the intersection of two containers.
+     */
+    private static int containerAndCardinality(CompressedBitmap a, int i, CompressedBitmap b, int j) {
+	if (a.arrays[i] != null && b.arrays[j] != null) {
+	    char [] x = a.arrays[i];
+	    char [] y = b.arrays[j];
+	    int p = 0, q = 0, count = 0;
+	    int xl = a.cardinalities[i], yl = b.cardinalities[j];
+	    while (p < xl && q < yl) {
+		if (x[p] < y[q])
+		    p ++;
+		else if (x[p] > y[q])
+		    q ++;
+		else {
+		    count ++;
+		    p ++;
+		    q ++;
+		}
+	    }
+	    return count;
+	} else if (a.arrays[i] != null || b.arrays[j] != null) {
+	    CompressedBitmap sparse = a.arrays[i] != null ? a : b;
+	    int s = a.arrays[i] != null ? i : j;
+	    long [] bitmap = a.arrays[i] != null ? b.bitmaps[j] : a.bitmaps[i];
+	    int count = 0;
+	    for(int k=0; k < sparse.cardinalities[s]; k++) {
+		char low = sparse.arrays[s][k];
+		if ((bitmap[low >>> 6] & (1L << low)) != 0)
+		    count ++;
+	    }
+	    return count;
+	} else {
+	    int count = 0;
+	    for(int k=0; k < BITMAP_WORDS; k++)
+		count += Long.bitCount(a.bitmaps[i][k] & b.bitmaps[j][k]);
+	    return count;
+	}
+    }
+
+}
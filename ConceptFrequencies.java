@@ -0,0 +1,237 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * The <code>ConceptFrequencies</code> class is a sidecar of the B-Tree index holding the number of annotated elements of every concept, and the number of distinct annotated elements of every ontology. The table is memory-mapped, so concept and ontology counts are array reads.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class ConceptFrequencies {
+
+    /**
+     * Magic number and version of the file format.
+     */
+    static final int MAGIC = 0x414d4d46;
+
+    static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * Version of the index the table was computed from.
+     */
+    long indexVersion;
+
+    /**
+     * Smallest concept identifier in the table.
+     */
+    long firstConcept;
+
+    /**
+     * Number of concepts in the table.
+     */
+    int conceptCount;
+
+    /**
+     * Sorted starting concept identifiers, lengths and element counts of
+     * the ontologies.
+     */
+    long [] ontologyStart;
+
+    long [] ontologyLength;
+
+    long [] ontologyCount;
+
+    /**
+     * Memory-mapped frequencies indexed by concept offset.
+     */
+    LongBuffer frequencies;
+
+    /**
+     * Constructor maps a frequency table written by <code>write</code>.
+     * @param fileName Name of the file containing the table.
+     */
+    private ConceptFrequencies(String fileName) throws Exception {
+	RandomAccessFile file = new RandomAccessFile(fileName,"r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		throw new Exception("Not a concept frequency table : " + fileName);
+	    indexVersion = buffer.getLong(8);
+	    firstConcept = buffer.getLong(16);
+	    conceptCount = buffer.getInt(24);
+	    int ontologies = buffer.getInt(28);
+	    ontologyStart = new long[ontologies];
+	    ontologyLength = new long[ontologies];
+	    ontologyCount = new long[ontologies];
+	    int position = HEADER_SIZE;
+	    for(int i=0; i < ontologies; i++) {
+		ontologyStart[i] = buffer.getLong(position);
+		ontologyLength[i] = buffer.getLong(position + 8);
+		ontologyCount[i] = buffer.getLong(position + 16);
+		position += 24;
+	    }
+	    buffer.position(position);
+	    frequencies = buffer.slice().asLongBuffer();
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Opens the frequency table of an index if it exists.
+     * @param fileName Name of the file containing the table.
+     * @return Frequency table, or null if there is none.
+     */
+    public static ConceptFrequencies open(String fileName) {
+	if (!(new File(fileName)).exists())
+	    return null;
+	try {
+	    return new ConceptFrequencies(fileName);
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Gets the number of elements annotated with a concept.
+     * @param concept Concept identifier.
+     * @return Count for the given concept.
+     */
+    public long getConceptCount(long concept) {
+	long offset = concept - firstConcept;
+	if (offset < 0 || offset >= conceptCount)
+	    return 0;
+	return frequencies.get((int) offset);
+    }
+
+    /**
+     * Gets the number of distinct elements annotated with a concept of an
+     * ontology.
+     * @param concept Starting concept identifier for a given ontology.
+     * @param length Total number of concepts in the ontology.
+     * @return Total concept count, or -1 if the ontology is not in the table.
+     */
+    public long getTotalConceptCount(long concept, long length) {
+	int low = 0, high = ontologyStart.length - 1;
+	while (low <= high) {
+	    int middle = (low + high) >>> 1;
+	    if (ontologyStart[middle] < concept)
+		low = middle + 1;
+	    else if (ontologyStart[middle] > concept)
+		high = middle - 1;
+	    else if (ontologyLength[middle] == length)
+		return ontologyCount[middle];
+	    else
+		return -1;
+	}
+	return -1;
+    }
+
+    /**
+     * Computes the frequency table of an index and writes it to a file.
+     * @param fileName Name of the file for the table.
+     * @param reader Reader over the B-tree index.
+     * @param ontologies Starting concept identifier and length of each ontology, sorted on the start.
+     * @return null.
+     */
+    public static void write(String fileName, IndexReader reader, ArrayList<long []> ontologies) throws Exception {
+	long firstConcept = -1;
+	long [] counts = new long[1024];
+	TermEnum terms = reader.terms(new Term("concepts", NumericUtils.longToPrefixCoded(Long.MIN_VALUE)));
+	TermDocs termDocs = reader.termDocs();
+	boolean deletions = reader.hasDeletions();
+	try {
+	    do {
+		Term term = terms.term();
+		if (term == null || !term.field().equals("concepts") || term.text().charAt(0) != NumericUtils.SHIFT_START_LONG)
+		    break;
+		long concept = NumericUtils.prefixCodedToLong(term.text());
+		if (firstConcept == -1)
+		    firstConcept = concept;
+		int offset = (int) (concept - firstConcept);
+		if (offset >= counts.length) {
+		    long [] grown = new long[Math.max(offset + 1, 2 * counts.length)];
+		    System.arraycopy(counts, 0, grown, 0, counts.length);
+		    counts = grown;
+		}
+		// The term frequency still counts deleted documents until they are merged away.
+		if (deletions) {
+		    long count = 0;
+		    termDocs.seek(terms);
+		    while (termDocs.next())
+			count ++;
+		    counts[offset] = count;
+		} else
+		    counts[offset] = terms.docFreq();
+	    } while (terms.next());
+	} finally {
+	    termDocs.close();
+	    terms.close();
+	}
+	int conceptCount = 0;
+	for(int i=0; i < counts.length; i++) {
+	    if (counts[i] != 0)
+		conceptCount = i + 1;
+	}
+
+	IndexSearcher searcher = new IndexSearcher(reader);
+	// Written next to the table and renamed over it, as searchers in other processes may keep it mapped.
+	File temp = new File(fileName + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(reader.getVersion());
+	    out.writeLong(firstConcept == -1 ? 0 : firstConcept);
+	    out.writeInt(conceptCount);
+	    out.writeInt(ontologies.size());
+	    for(int i=0; i < ontologies.size(); i++) {
+		long start = ontologies.get(i)[0];
+		long length = ontologies.get(i)[1];
+		// Elements annotated with several concepts of the ontology are counted once.
+		BitSetCollector elements = new BitSetCollector(reader.maxDoc());
+		searcher.search(NumericRangeQuery.newLongRange("concepts",start,start+length,true,false), elements);
+		out.writeLong(start);
+		out.writeLong(length);
+		out.writeLong(elements.bits.cardinality());
+	    }
+	    for(int i=0; i < conceptCount; i++)
+		out.writeLong(counts[i]);
+	} finally {
+	    out.close();
+	}
+	AtomicFiles.replace(temp,fileName);
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+
+import java.util.Arrays;
+
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * The <code>ConceptSketches</code> class is a sidecar of the B-Tree index holding a one-permutation MinHash sketch of the elements of every concept. Comparing the sketches of a source, a destination and a context concept gives an estimate, and a bound, of the number of elements they share without touching the index, so that hopeless triples can be discarded before exact counting.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class ConceptSketches {
+
+    /**
+     * Magic number and version of the file format.
+     */
+    static final int MAGIC = 0x414d4d53;
+
+    static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header in bytes.
+     */
+    static final int HEADER_SIZE = 40;
+
+    /**
+     * Value of a bucket no element of the concept hashed to.
+     */
+    static final int EMPTY = -1;
+
+    /**
+     * Version of the index the sketches were computed from.
+     */
+    long indexVersion;
+
+    /**
+     * Number of elements in the index.
+     */
+    long totalElements;
+
+    /**
+     * Number of buckets of each sketch, a power of two.
+     */
+    int buckets;
+
+    /**
+     * Smallest concept identifier and number of concepts.
+     */
+    long firstConcept;
+
+    int conceptCount;
+
+    /**
+     * Memory-mapped cardinality followed by the buckets of each concept.
+     */
+    IntBuffer sketches;
+
+    /**
+     * Constructor maps sketches written by <code>write</code>.
+     * @param fileName Name of the file containing the sketches.
+     */
+    private ConceptSketches(String fileName) throws Exception {
+	RandomAccessFile file = new RandomAccessFile(fileName,"r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		throw new Exception("Not a concept sketch file : " + fileName);
+	    indexVersion = buffer.getLong(8);
+	    totalElements = buffer.getLong(16);
+	    buckets = buffer.getInt(24);
+	    conceptCount = buffer.getInt(28);
+	    firstConcept = buffer.getLong(32);
+	    buffer.position(HEADER_SIZE);
+	    sketches = buffer.slice().asIntBuffer();
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Opens the sketches of an index if they exist.
+     * @param fileName Name of the file containing the sketches.
+     * @return Sketches, or null if there are none.
+     */
+    public static ConceptSketches open(String fileName) {
+	if (!(new File(fileName)).exists())
+	    return null;
+	try {
+	    return new ConceptSketches(fileName);
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Opens the sketches of an index if they exist and were computed from
+     * its current version. Sketches of an earlier version of the index would
+     * skew the estimates, so they are refused until written again.
+     * @param fileName Name of the file containing the sketches.
+     * @param indexName Name of the index the sketches were computed from.
+     * @return Sketches, or null if there are none or they are stale.
+     */
+    public static ConceptSketches open(String fileName, String indexName) {
+	ConceptSketches sketches = open(fileName);
+	if (sketches == null)
+	    return null;
+	try {
+	    Directory directory = new SimpleFSDirectory(new File(indexName));
+	    try {
+		if (IndexReader.getCurrentVersion(directory) != sketches.indexVersion) {
+		    System.out.println("Ignoring stale concept sketches " + fileName + " of " + indexName);
+		    return null;
+		}
+	    } finally {
+		directory.close();
+	    }
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+	return sketches;
+    }
+
+    /**
+     * Hash of an element, spreading document ids over 32 bits.
+     * @param element Element (document) id.
+     * @return Hash value.
+     */
+    static int hash(int element) {
+	int h = element * 0x9e3779b9;
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	h *= 0xc2b2ae35;
+	h ^= h >>> 16;
+	return h;
+    }
+
+    /**
+     * Position of the sketch of a concept in the mapped buffer.
+     * @param concept Concept identifier.
+     * @return Offset of the cardinality of the concept, or -1 if it has no sketch.
+     */
+    private int offset(long concept) {
+	long offset = concept - firstConcept;
+	if (offset < 0 || offset >= conceptCount)
+	    return -1;
+	return (int) offset * (buckets + 1);
+    }
+
+    /**
+     * Gets the number of elements annotated with a concept.
+     * @param concept Concept identifier.
+     * @return Count for the given concept.
+     */
+    public long getConceptCount(long concept) {
+	int offset = offset(concept);
+	return offset == -1 ? 0 : sketches.get(offset);
+    }
+
+    /**
+     * Compares the sketches of three concepts.
+     * @return Two-element array : buckets where all three share their minimum, and buckets where at least one is non-empty.
+     */
+    private int [] compare(int a, int b, int c) {
+	int [] result = {0,0};
+	for(int i=1; i <= buckets; i++) {
+	    int x = sketches.get(a + i);
+	    int y = sketches.get(b + i);
+	    int z = sketches.get(c + i);
+	    if (x == EMPTY && y == EMPTY && z == EMPTY)
+		continue;
+	    result[1] ++;
+	    if (x == y && y == z)
+		result[0] ++;
+	}
+	return result;
+    }
+
+    /**
+     * Estimates the number of elements annotated with all three concepts.
+     * @param source Source concept.
+     * @param destination Destination concept.
+     * @param context Context concept.
+     * @return Estimated co-occurrence count.
+     */
+    public double estimateCooccurrence(long source, long destination, long context) {
+	return upperBoundCooccurrence(source,destination,context,0.0);
+    }
+
+    /**
+     * Bounds the number of elements annotated with all three concepts. The
+     * fraction of matching buckets estimates the share of the union that
+     * the intersection takes; it is raised by <code>confidence</code>
+     * binomial standard deviations and scaled by a bound on the union.
+     * @param source Source concept.
+     * @param destination Destination concept.
+     * @param context Context concept.
+     * @param confidence Number of standard deviations added to the estimate, 0 for the plain estimate.
+     * @return Upper bound of the co-occurrence count.
+     */
+    public double upperBoundCooccurrence(long source, long destination, long context, double confidence) {
+	int a = offset(source);
+	int b = offset(destination);
+	int c = offset(context);
+	if (a == -1 || b == -1 || c == -1)
+	    return 0.0;
+	long na = sketches.get(a);
+	long nb = sketches.get(b);
+	long nc = sketches.get(c);
+	double exact = Math.min(na, Math.min(nb, nc));
+	if (exact == 0.0)
+	    return 0.0;
+	int [] matches = compare(a,b,c);
+	double union = Math.min(totalElements, na + nb + nc);
+	double fraction = (matches[0] + confidence * Math.sqrt(matches[0] + 1.0)) / matches[1];
+	return Math.min(exact, fraction * union);
+    }
+
+    /**
+     * Computes the sketches of all concepts of an index and writes them to
+     * a file.
+     * @param fileName Name of the file for the sketches.
+     * @param reader Reader over the B-tree index.
+     * @param buckets Number of buckets of each sketch, a power of two of at least 2.
+     * @return null.
+     */
+    public static void write(String fileName, IndexReader reader, int buckets) throws Exception {
+	if (buckets < 2 || (buckets & (buckets - 1)) != 0)
+	    throw new Exception("Number of buckets must be a power of two : " + buckets);
+	int bucketBits = Integer.numberOfTrailingZeros(buckets);
+	// The bucket takes the high bits of the hash, the value the others, so it is never EMPTY.
+	int valueMask = -1 >>> bucketBits;
+	int maxDoc = reader.maxDoc();
+	int [] docHashes = new int[maxDoc];
+	for(int doc=0; doc < maxDoc; doc++)
+	    docHashes[doc] = hash(doc);
+
+	// The concept range is found first, so the file can be written densely.
+	long firstConcept = -1, lastConcept = -1;
+	TermEnum terms = reader.terms(new Term("concepts", NumericUtils.longToPrefixCoded(Long.MIN_VALUE)));
+	try {
+	    do {
+		Term term = terms.term();
+		if (term == null || !term.field().equals("concepts") || term.text().charAt(0) != NumericUtils.SHIFT_START_LONG)
+		    break;
+		long concept = NumericUtils.prefixCodedToLong(term.text());
+		if (firstConcept == -1)
+		    firstConcept = concept;
+		lastConcept = concept;
+	    } while (terms.next());
+	} finally {
+	    terms.close();
+	}
+	int conceptCount = firstConcept == -1 ? 0 : (int) (lastConcept - firstConcept + 1);
+
+	// Written next to the sketches and renamed over them, as mapping jobs may keep them mapped.
+	File temp = new File(fileName + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+	terms = reader.terms(new Term("concepts", NumericUtils.longToPrefixCoded(Long.MIN_VALUE)));
+	TermDocs termDocs = reader.termDocs();
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(reader.getVersion());
+	    out.writeLong(reader.numDocs());
+	    out.writeInt(buckets);
+	    out.writeInt(conceptCount);
+	    out.writeLong(firstConcept == -1 ? 0 : firstConcept);
+	    int [] sketch = new int[buckets];
+	    long next = firstConcept;
+	    for(int i=0; i < conceptCount; i++) {
+		Term term = terms.term();
+		long concept = NumericUtils.prefixCodedToLong(term.text());
+		int cardinality = 0;
+		Arrays.fill(sketch, EMPTY);
+		if (concept == next) {
+		    termDocs.seek(terms);
+		    while (termDocs.next()) {
+			int h = docHashes[termDocs.doc()];
+			int bucket = h >>> (32 - bucketBits);
+			int value = h & valueMask;
+			if (sketch[bucket] == EMPTY || value < sketch[bucket])
+			    sketch[bucket] = value;
+			cardinality ++;
+		    }
+		    terms.next();
+		}
+		out.writeInt(cardinality);
+		for(int j=0; j < buckets; j++)
+		    out.writeInt(sketch[j]);
+		next ++;
+	    }
+	} finally {
+	    termDocs.close();
+	    terms.close();
+	    out.close();
+	}
+	AtomicFiles.replace(temp,fileName);
+    }
+
+}
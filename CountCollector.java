@@ -25,8 +25,12 @@ public class CountCollector extends Collector {
 	count ++;
     }
 
-    public void setNextReader(IndexReader reader, int docBase) {
+    public void reset() {
 	this.count = 0;
     }
 
+    public void setNextReader(IndexReader reader, int docBase) {
+
+    }
+
 }
\ No newline at end of file
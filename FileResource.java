@@ -0,0 +1,465 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * The <code>FileResource</code> serves the <code>Resource</code> calls from local columnar dumps of the NCBO tables instead of a MySQL server, so that graphs can be loaded and annotations indexed on nodes without database access. Every table is a directory holding one file per column : <code>column.col</code> with one long per row, memory-mapped, or <code>column.str</code> with length-prefixed UTF-8 strings, read on first use. Rows are sorted on the first column of the table. The dumps are written once from a database by <code>export</code>.
+ *
+ * Usage : FileResource serverName databaseName username password dumpDirectory annotationTable
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class FileResource extends Resource {
+
+    /**
+     * Tables dumped by <code>exportAll</code>, with their columns. The first
+     * columns are the sort order.
+     */
+    static final String [][] TABLES = {
+	{"obs_ontology", "id", "name"},
+	{"obs_concept", "id", "ontology_id", "is_toplevel"},
+	{"obs_relation", "concept_id", "parent_concept_id", "level"}
+    };
+
+    /**
+     * Columns of the annotation tables.
+     */
+    static final String [] ANNOTATION_COLUMNS = {"element_id", "concept_id"};
+
+    /**
+     * Number of rows of a long column mapped at once; mappings are limited
+     * to 2GB.
+     */
+    static final int CHUNK_ROWS = 1 << 27;
+
+    /**
+     * Directory holding a directory per table.
+     */
+    String dumpDirectory;
+
+    /**
+     * Columns opened so far, by table and column name.
+     */
+    HashMap<String,Column> columns = new HashMap<String,Column> ();
+
+    /**
+     * Indexes of the columns looked up by value, by table and column name :
+     * the first row holding each value and the number of rows holding it.
+     */
+    HashMap<String,HashMap<Long,long []>> valueIndexes = new HashMap<String,HashMap<Long,long []>> ();
+
+    /**
+     * Column of a dumped table.
+     */
+    static class Column {
+
+	/**
+	 * Memory-mapped chunks of a long column, or null for a string column.
+	 */
+	LongBuffer [] chunks;
+
+	/**
+	 * Values of a string column, or null for a long column.
+	 */
+	String [] strings;
+
+	long rows;
+
+	/**
+	 * Value of a row of a long column.
+	 * @param row Row number.
+	 * @return Value.
+	 */
+	long get(long row) {
+	    return chunks[(int) (row / CHUNK_ROWS)].get((int) (row % CHUNK_ROWS));
+	}
+
+	/**
+	 * Value of a row as a string, whatever the type of the column.
+	 * @param row Row number.
+	 * @return Value.
+	 */
+	String getString(long row) {
+	    return strings != null ? strings[(int) row] : Long.toString(get(row));
+	}
+    }
+
+    /**
+     * Constructor opens the dumps of a directory.
+     * @param dumpDirectory Directory written by <code>export</code>.
+     */
+    public FileResource(String dumpDirectory) {
+	this.dumpDirectory = dumpDirectory;
+    }
+
+    /**
+     * Opens a column of a dumped table.
+     * @param tableName Name of the table.
+     * @param columnName Name of the column.
+     * @return Column.
+     */
+    synchronized Column getColumn(String tableName, String columnName) throws Exception {
+	String key = tableName + "/" + columnName;
+	Column column = columns.get(key);
+	if (column != null)
+	    return column;
+	column = new Column();
+	File file = new File(dumpDirectory, key + ".col");
+	if (file.exists()) {
+	    RandomAccessFile raf = new RandomAccessFile(file,"r");
+	    try {
+		FileChannel channel = raf.getChannel();
+		column.rows = channel.size() / 8;
+		column.chunks = new LongBuffer[(int) ((column.rows + CHUNK_ROWS - 1) / CHUNK_ROWS)];
+		for(int i=0; i < column.chunks.length; i++) {
+		    long first = (long) i * CHUNK_ROWS;
+		    long size = Math.min(CHUNK_ROWS, column.rows - first);
+		    column.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, first * 8, size * 8).asLongBuffer();
+		}
+	    } finally {
+		raf.close();
+	    }
+	} else {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dumpDirectory, key + ".str"))));
+	    try {
+		column.rows = in.readInt();
+		column.strings = new String[(int) column.rows];
+		for(int i=0; i < column.rows; i++)
+		    column.strings[i] = in.readUTF();
+	    } finally {
+		in.close();
+	    }
+	}
+	columns.put(key,column);
+	return column;
+    }
+
+    /**
+     * First row of a column sorted in increasing order whose value is at
+     * least a given value.
+     * @param column Sorted column.
+     * @param value Value searched.
+     * @return Row number, the number of rows if all values are smaller.
+     */
+    private long lowerBound(Column column, long value) {
+	long low = 0, high = column.rows;
+	while (low < high) {
+	    long middle = (low + high) >>> 1;
+	    if (column.get(middle) < value)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Index of a column by value, built in one pass when the column is first
+     * looked up, e.g. the concepts of every ontology in obs_concept.
+     * @param tableName Name of the table.
+     * @param columnName Name of the column.
+     * @return First row and number of rows of each value.
+     */
+    synchronized HashMap<Long,long []> getValueIndex(String tableName, String columnName) throws Exception {
+	String key = tableName + "/" + columnName;
+	HashMap<Long,long []> index = valueIndexes.get(key);
+	if (index != null)
+	    return index;
+	Column column = getColumn(tableName,columnName);
+	index = new HashMap<Long,long []> ();
+	for(long row=0; row < column.rows; row++) {
+	    long [] rows = index.get(column.get(row));
+	    if (rows == null)
+		index.put(column.get(row),new long[] {row, 1});
+	    else
+		rows[1] ++;
+	}
+	valueIndexes.put(key,index);
+	return index;
+    }
+
+    /**
+     * This function is for getting a single row statistic, the value of a
+     * column, or <code>count(column)</code>, over the rows where another
+     * column has a given value, from the index of that column.
+     * @param tableName Name of table for SQL query to be executed.
+     * @param inpColumnName Name of input column for SQL query.
+     * @param outColumnName Name of output column for SQL query.
+     * @param id Identifier characterizing the value of the input column.
+     */
+    public String getOntologyStatistics(String tableName, String inpColumnName, String outColumnName, String id) {
+	try {
+	    boolean count = outColumnName.toLowerCase().startsWith("count(");
+	    long [] rows = getValueIndex(tableName,inpColumnName).get(Long.parseLong(id.trim()));
+	    if (count)
+		return rows == null ? "0" : Long.toString(rows[1]);
+	    return rows == null ? "" : getColumn(tableName,outColumnName).getString(rows[0]);
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * This function creates the graph adjacency list and also returns the set
+     * of roots in the ontology, from the dumps of obs_relation and
+     * obs_concept.
+     * @param id  Identifier for ontology concepts.
+     * @param len Number of concepts in an ontology.
+     * @param adjacencyList Graph representation for the given ontology.
+     * @return Adjacency list for the ontology.
+     */
+    public HashSet<Long> getOntologyGraphSpecObs(long id, long len, HashMap<Long,HashSet<Long>> adjacencyList) {
+	try {
+	    Column child = getColumn("obs_relation","concept_id");
+	    Column parent = getColumn("obs_relation","parent_concept_id");
+	    Column level = getColumn("obs_relation","level");
+	    for(long row = lowerBound(child,id); row < child.rows && child.get(row) < id + len; row++) {
+		if (level.get(row) != 1)
+		    continue;
+		Long p = parent.get(row);
+		HashSet<Long> childs = adjacencyList.get(p);
+		if (childs == null) {
+		    childs = new HashSet<Long> ();
+		    adjacencyList.put(p,childs);
+		}
+		childs.add(child.get(row));
+	    }
+
+	    HashSet<Long> roots = new HashSet<Long> ();
+	    Column concept = getColumn("obs_concept","id");
+	    Column topLevel = getColumn("obs_concept","is_toplevel");
+	    for(long row = lowerBound(concept,id); row < concept.rows && concept.get(row) < id + len; row++) {
+		if (topLevel.get(row) == 1)
+		    roots.add(concept.get(row));
+	    }
+	    return roots;
+	} catch (Exception e) {
+	    System.out.println(e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * This function returns the starting concept identifier and the number
+     * of concepts of every ontology, sorted on the starting identifier.
+     * @return List of (start, length) pairs.
+     */
+    public ArrayList<long []> getOntologyRanges() {
+	try {
+	    Column concept = getColumn("obs_concept","id");
+	    Column ontology = getColumn("obs_concept","ontology_id");
+	    HashMap<Long,long []> ranges = new HashMap<Long,long []> ();
+	    ArrayList<long []> result = new ArrayList<long []> ();
+	    // Concepts are sorted on the id, so ontologies are met in the order of their start.
+	    for(long row=0; row < concept.rows; row++) {
+		long [] range = ranges.get(ontology.get(row));
+		if (range == null) {
+		    range = new long[] {concept.get(row), 0};
+		    ranges.put(ontology.get(row),range);
+		    result.add(range);
+		}
+		range[1] ++;
+	    }
+	    return result;
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * The dumps are not served through result sets; windows of rows are
+     * read with <code>streamResourceStatistics</code>.
+     */
+    public ResultSet getResourceStatistics(String tableName, String outColumnName1, String outColumnName2, long startIndex) {
+	System.out.println("Result sets are not available from dumps, use streamResourceStatistics");
+	return null;
+    }
+
+    /**
+     * This function streams the rows of a dumped table over a range of its
+     * first column to a callback, in the order of the dump. A
+     * <code>PageHandler</code> is told of the end of every 
+     * <code>pageRows</code> rows.
+     * @param tableName Name of table.
+     * @param outColumnName1 Name of the key column, e.g. element_id.
+     * @param outColumnName2 Name of the value column, e.g. concept_id.
+     * @param startIndex First key of the range.
+     * @param endIndex Last key of the range.
+     * @param handler Callback for the rows.
+     * @return Number of rows read, or -1 on error.
+     */
+    public long streamResourceStatistics(String tableName, String outColumnName1, String outColumnName2, long startIndex, long endIndex, RowHandler handler) {
+	try {
+	    Column keys = getColumn(tableName,outColumnName1);
+	    Column values = getColumn(tableName,outColumnName2);
+	    long first = lowerBound(keys,startIndex);
+	    long row = first;
+	    long key;
+	    while (row < keys.rows && (key = keys.get(row)) <= endIndex) {
+		handler.handleRow(key,values.get(row));
+		row ++;
+		// Pages of the same size as those of the database.
+		if (handler instanceof PageHandler && (row - first) % pageRows == 0)
+		    ((PageHandler) handler).endPage();
+	    }
+	    if (handler instanceof PageHandler && (row - first) % pageRows != 0)
+		((PageHandler) handler).endPage();
+	    return row - first;
+	} catch (Exception e) {
+	    System.out.println(e.getMessage());
+	    return -1;
+	}
+    }
+
+    /**
+     * This function gets the largest key of a dumped table, the last of its
+     * sorted key column.
+     * @param tableName Name of table.
+     * @param outColumnName1 Name of the key column, e.g. element_id.
+     * @return Largest key, 0 for an empty table, or -1 on error.
+     */
+    public long getMaxKey(String tableName, String outColumnName1) {
+	try {
+	    Column keys = getColumn(tableName,outColumnName1);
+	    return keys.rows == 0 ? 0 : keys.get(keys.rows - 1);
+	} catch (Exception e) {
+	    System.out.println(e.getMessage());
+	    return -1;
+	}
+    }
+
+    /**
+     * The mapped dumps are released by the garbage collector.
+     * @return null.
+     */
+    public void close() {
+	columns.clear();
+    }
+
+    /**
+     * Dumps columns of a database table, sorted on the given columns in
+     * turn. The rows are streamed from the server.
+     * @param resource Resource connected to the database.
+     * @param dumpDirectory Directory of the dumps.
+     * @param tableName Name of the table.
+     * @param columnNames Names of the columns, the first ones being the sort order.
+     * @param sortColumns Number of leading columns the rows are sorted on.
+     * @return Number of rows dumped.
+     */
+    public static long export(Resource resource, String dumpDirectory, String tableName, String [] columnNames, int sortColumns) throws Exception {
+	File tableDirectory = new File(dumpDirectory, tableName);
+	tableDirectory.mkdirs();
+	StringBuilder query = new StringBuilder("SELECT ");
+	for(int i=0; i < columnNames.length; i++)
+	    query.append(i == 0 ? "" : " , ").append(columnNames[i]);
+	query.append(" FROM ").append(tableName).append(" ORDER BY ");
+	for(int i=0; i < sortColumns; i++)
+	    query.append(i == 0 ? "" : " , ").append(columnNames[i]);
+
+	Statement statement = resource.connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	statement.setFetchSize(Integer.MIN_VALUE);
+	ResultSet resultset = statement.executeQuery(query.toString());
+	ResultSetMetaData metaData = resultset.getMetaData();
+	DataOutputStream [] out = new DataOutputStream[columnNames.length];
+	boolean [] numeric = new boolean[columnNames.length];
+	ArrayList<ArrayList<String>> strings = new ArrayList<ArrayList<String>> ();
+	long rows = 0;
+	try {
+	    for(int i=0; i < columnNames.length; i++) {
+		int type = metaData.getColumnType(i + 1);
+		numeric[i] = type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT || type == Types.BIT || type == Types.BOOLEAN;
+		if (numeric[i])
+		    out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tableDirectory, columnNames[i] + ".col")), 1 << 16));
+		strings.add(numeric[i] ? null : new ArrayList<String> ());
+	    }
+	    while (resultset.next()) {
+		for(int i=0; i < columnNames.length; i++) {
+		    if (numeric[i])
+			out[i].writeLong(resultset.getLong(i + 1));
+		    else {
+			String value = resultset.getString(i + 1);
+			strings.get(i).add(value == null ? "" : value);
+		    }
+		}
+		rows ++;
+	    }
+	} finally {
+	    resultset.close();
+	    statement.close();
+	    for(int i=0; i < out.length; i++) {
+		if (out[i] != null)
+		    out[i].close();
+	    }
+	}
+	// String columns are written once their number of rows is known.
+	for(int i=0; i < columnNames.length; i++) {
+	    if (numeric[i])
+		continue;
+	    DataOutputStream str = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tableDirectory, columnNames[i] + ".str"))));
+	    try {
+		str.writeInt(strings.get(i).size());
+		for(int j=0; j < strings.get(i).size(); j++)
+		    str.writeUTF(strings.get(i).get(j));
+	    } finally {
+		str.close();
+	    }
+	}
+	return rows;
+    }
+
+    /**
+     * Dumps the ontology tables and an annotation table.
+     * @param resource Resource connected to the database.
+     * @param dumpDirectory Directory of the dumps.
+     * @param annotationTable Name of the annotation table, e.g. obr_bsm_annotation.
+     * @return null.
+     */
+    public static void exportAll(Resource resource, String dumpDirectory, String annotationTable) throws Exception {
+	for(int i=0; i < TABLES.length; i++) {
+	    String [] columnNames = new String[TABLES[i].length - 1];
+	    System.arraycopy(TABLES[i], 1, columnNames, 0, columnNames.length);
+	    System.out.println(TABLES[i][0] + " : " + export(resource,dumpDirectory,TABLES[i][0],columnNames,1) + " rows");
+	}
+	System.out.println(annotationTable + " : " + export(resource,dumpDirectory,annotationTable,ANNOTATION_COLUMNS,2) + " rows");
+    }
+
+    public static void main(String [] args) {
+	long time = System.currentTimeMillis();
+	Resource resource = new Resource(args[0],args[1],args[2],args[3]);
+	try {
+	    exportAll(resource,args[4],args[5]);
+	} catch (Exception e) {
+	    System.out.println("Exception in exporting database : " + e.getMessage());
+	}
+	resource.close();
+	System.out.println(System.currentTimeMillis() - time);
+    }
+
+}
@@ -9,8 +9,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
 
 import java.io.Serializable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.IntBuffer;
 
 /**
  * The <code>GraphADS</code> encapsulates the abstract data-structure
@@ -19,6 +25,10 @@ import java.io.Serializable;
  */
 public class GraphADS implements Serializable {
 
+    /** Serialization identifier computed from the class before the compressed representation, so that the graphs it serialized can still be restored.
+     */
+    private static final long serialVersionUID = -1219371812121738928L;
+
     /** Name of the ontology representing this graph.
      */
     String name;
@@ -31,15 +41,42 @@ public class GraphADS implements Serializable {
      */
     long length;
 
-    /** This represents the adjacencyList for the ontology i.e. parent pointing to the child.
+    /** This represents the adjacencyList for the ontology i.e. parent pointing to the child. It only holds the graph while it is loaded, and is replaced by the compressed representation below.
      */
     HashMap<Long,HashSet<Long>> adjacencyList;
 
+    /** Compressed sparse row representation of the graph. Concepts are numbered from 0 by their offset from startIndex; the children of node n are the entries childStart(n) to childEnd(n) - 1 of children, in the iteration order of the adjacency list they were built from, so traversals visit nodes in the same order. Edges to or from concepts outside the ontology, such as the parents of its concepts in other ontologies, are kept in externalEdges instead. The arrays are heap buffers for graphs built or deserialized, and memory-mapped buffers for graphs opened from a graph store.
+     */
+    transient IntBuffer childOffsets;
+
+    transient IntBuffer children;
+
+    /** Reverse (child to parent) compressed sparse row representation.
+     */
+    transient IntBuffer parentOffsets;
+
+    transient IntBuffer parents;
+
+    /** Edges of the adjacency list with an endpoint outside the ontology, parent pointing to the children. They cannot be reached from the roots, but they carry the ancestors of concepts across ontologies.
+     */
+    HashMap<Long,HashSet<Long>> externalEdges;
+
     /** This represents all the roots in the ontology. Traversing is done by them (also does the 
      * topological sort simultaneously).
      */
     HashSet<Long> roots;
 
+    /** Precomputed levels of the reverse topological sort, as offsets into the level nodes, or null if they are computed on demand.
+     */
+    transient IntBuffer levelOffsets;
+
+    transient IntBuffer levelNodes;
+
+    /**
+     * Constructor for graphs filled in by a graph store.
+     */
+    GraphADS() {
+    }
 
     /**
      * Constructor initializing the graph data-structure from NCBO database
@@ -47,50 +84,261 @@ public class GraphADS implements Serializable {
      */
     public GraphADS(String ontologyID) {
 	Resource resource = new Resource("ncbodev-obrdbmaster1.sunet", "resource_index_test", "ammo", "ammo");
+	load(ontologyID, resource);
+	resource.close();
+    }
+
+    /**
+     * Constructor initializing the graph data-structure from a given 
+     * resource, e.g. a <code>FileResource</code> over local dumps.
+     */
+    public GraphADS(String ontologyID, Resource resource) {
+	load(ontologyID, resource);
+    }
+
+    /**
+     * Reads the ontology statistics and graph from a resource.
+     * @param ontologyID Ontology identifier.
+     * @param resource Resource holding the ontology tables.
+     * @return null
+     */
+    private void load(String ontologyID, Resource resource) {
 	name = resource.getOntologyStatistics("obs_ontology","id","name",ontologyID);
 	startIndex = Long.parseLong(resource.getOntologyStatistics("obs_concept", "ontology_id", "id", ontologyID));
 	length = Long.parseLong(resource.getOntologyStatistics("obs_concept", "ontology_id", "count(id)", ontologyID));
 	adjacencyList = new HashMap<Long,HashSet<Long>> ();
 	roots = resource.getOntologyGraphSpecObs(startIndex, length, adjacencyList);
-	resource.close();
+	compress();
     }
 
     /**
-     * One-step breadth first search for getting nodes at the next level.
-     * @param nodes Nodes at the current level.
-     * @param visited Nodes already visited.
-     * @return Nodes at the next level.
-     */
-    private HashSet<Long> getNextLevel(HashSet<Long> nodes, HashSet<Long> visited) {
-	HashSet<Long> nextLevel = new HashSet<Long> ();
-	Iterator niterator = nodes.iterator();
-	while(niterator.hasNext()) {
-	    Long node = (Long) niterator.next();
-	    HashSet<Long> cnodes = adjacencyList.get(node);
-	    if (cnodes == null)
-		continue;
-	    else {
-		Iterator citerator = cnodes.iterator();
-		while (citerator.hasNext()) {
-		    Long cnode = (Long) citerator.next();
-		    if (!visited.contains(cnode))
-			nextLevel.add(cnode);
+     * Replaces the adjacency list by its compressed sparse row 
+     * representations.
+     * @return null
+     */
+    private void compress() {
+	int nodes = (int) length;
+	int [] childOffset = new int[nodes + 1];
+	int [] parentOffset = new int[nodes + 1];
+	int [] child = null;
+	int [] parent = null;
+	externalEdges = new HashMap<Long,HashSet<Long>> ();
+	// Edges are counted per node first, then placed.
+	for(int pass=0; pass < 2; pass++) {
+	    int [] childFill = pass == 0 ? null : childOffset.clone();
+	    int [] parentFill = pass == 0 ? null : parentOffset.clone();
+	    Iterator entries = adjacencyList.entrySet().iterator();
+	    while(entries.hasNext()) {
+		Map.Entry entry = (Map.Entry) entries.next();
+		Long parentConcept = (Long) entry.getKey();
+		int p = index(parentConcept);
+		Iterator citerator = ((HashSet<Long>) entry.getValue()).iterator();
+		while(citerator.hasNext()) {
+		    Long childConcept = (Long) citerator.next();
+		    int c = index(childConcept);
+		    if (p == -1 || c == -1) {
+			if (pass == 0)
+			    addExternalEdge(parentConcept,childConcept);
+			continue;
+		    }
+		    if (pass == 0) {
+			childOffset[p + 1] ++;
+			parentOffset[c + 1] ++;
+		    } else {
+			child[childFill[p] ++] = c;
+			parent[parentFill[c] ++] = p;
+		    }
 		}
 	    }
+	    if (pass == 0) {
+		for(int n=0; n < nodes; n++) {
+		    childOffset[n + 1] += childOffset[n];
+		    parentOffset[n + 1] += parentOffset[n];
+		}
+		child = new int[childOffset[nodes]];
+		parent = new int[parentOffset[nodes]];
+	    }
+	}
+	childOffsets = IntBuffer.wrap(childOffset);
+	children = IntBuffer.wrap(child);
+	parentOffsets = IntBuffer.wrap(parentOffset);
+	parents = IntBuffer.wrap(parent);
+	adjacencyList = null;
+    }
+
+    /**
+     * Adds an edge with an endpoint outside the ontology.
+     * @param parentConcept Parent concept identifier.
+     * @param childConcept Child concept identifier.
+     * @return null
+     */
+    void addExternalEdge(Long parentConcept, Long childConcept) {
+	HashSet<Long> childs = externalEdges.get(parentConcept);
+	if (childs == null) {
+	    childs = new HashSet<Long> ();
+	    externalEdges.put(parentConcept,childs);
 	}
-	return nextLevel;
+	childs.add(childConcept);
+    }
 
+    /**
+     * Edges with an endpoint outside the ontology.
+     * @return Map of the parent concepts to their children, empty if there are none.
+     */
+    public HashMap<Long,HashSet<Long>> getExternalEdges() {
+	if (externalEdges == null)
+	    externalEdges = new HashMap<Long,HashSet<Long>> ();
+	return externalEdges;
     }
-    
+
     /**
-     * Helper function to store already visited nodes.
-     * @param nodes List of current nodes.
-     * @param visited List of already visited nodes.
+     * Writes a graph with its compressed representation.
      */
-    private void insertIntoVisited(HashSet<Long> nodes, HashSet<Long> visited) {
-	Iterator iterator = nodes.iterator();
-	while(iterator.hasNext())
-	    visited.add((Long) iterator.next());
+    private void writeObject(ObjectOutputStream out) throws IOException {
+	out.defaultWriteObject();
+	IntBuffer [] arrays = {childOffsets, children, parentOffsets, parents};
+	for(int i=0; i < arrays.length; i++) {
+	    out.writeInt(arrays[i].limit());
+	    for(int j=0; j < arrays[i].limit(); j++)
+		out.writeInt(arrays[i].get(j));
+	}
+    }
+
+    /**
+     * Restores a serialized graph, compressing graphs serialized with their
+     * adjacency list.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	if (adjacencyList != null) {
+	    compress();
+	    return;
+	}
+	IntBuffer [] arrays = new IntBuffer[4];
+	for(int i=0; i < arrays.length; i++) {
+	    int [] array = new int[in.readInt()];
+	    for(int j=0; j < array.length; j++)
+		array[j] = in.readInt();
+	    arrays[i] = IntBuffer.wrap(array);
+	}
+	childOffsets = arrays[0];
+	children = arrays[1];
+	parentOffsets = arrays[2];
+	parents = arrays[3];
+    }
+
+    /**
+     * Bounds of the children of a node in <code>children</code>.
+     * @param node Node number.
+     * @return First and one past the last position.
+     */
+    public int childStart(int node) {
+	return childOffsets.get(node);
+    }
+
+    public int childEnd(int node) {
+	return childOffsets.get(node + 1);
+    }
+
+    /**
+     * Child at a position of <code>children</code>.
+     * @param position Position between childStart and childEnd of a node.
+     * @return Node number of the child.
+     */
+    public int child(int position) {
+	return children.get(position);
+    }
+
+    /**
+     * Bounds of the parents of a node in <code>parents</code>.
+     * @param node Node number.
+     * @return First and one past the last position.
+     */
+    public int parentStart(int node) {
+	return parentOffsets.get(node);
+    }
+
+    public int parentEnd(int node) {
+	return parentOffsets.get(node + 1);
+    }
+
+    /**
+     * Parent at a position of <code>parents</code>.
+     * @param position Position between parentStart and parentEnd of a node.
+     * @return Node number of the parent.
+     */
+    public int parent(int position) {
+	return parents.get(position);
+    }
+
+    /**
+     * Node number of a concept.
+     * @param concept Concept identifier.
+     * @return Offset from startIndex, or -1 if the concept is not in the ontology.
+     */
+    public int index(long concept) {
+	long offset = concept - startIndex;
+	return offset < 0 || offset >= length ? -1 : (int) offset;
+    }
+
+    /**
+     * Concept identifier of a node number.
+     * @param node Offset from startIndex.
+     * @return Concept identifier.
+     */
+    public long concept(int node) {
+	return startIndex + node;
+    }
+
+    /**
+     * Function to compute a reverse topological sort of the ontology 
+     * graph on node numbers : the roots, then the unvisited children of 
+     * each level.
+     * @return Array of levels of node numbers.
+     */
+    public int [][] levelSort() {
+	if (levelOffsets != null) {
+	    int [][] stored = new int[levelOffsets.limit() - 1][];
+	    for(int i=0; i < stored.length; i++) {
+		stored[i] = new int[levelOffsets.get(i + 1) - levelOffsets.get(i)];
+		for(int j=0; j < stored[i].length; j++)
+		    stored[i][j] = levelNodes.get(levelOffsets.get(i) + j);
+	    }
+	    return stored;
+	}
+	ArrayList<int []> levels = new ArrayList<int []> ();
+	boolean [] visited = new boolean[(int) length];
+	int [] level = new int[(int) length];
+	int size = 0;
+	Iterator riterator = roots.iterator();
+	while(riterator.hasNext()) {
+	    int root = index((Long) riterator.next());
+	    if (root != -1 && !visited[root]) {
+		visited[root] = true;
+		level[size++] = root;
+	    }
+	}
+	int [] next = new int[(int) length];
+	while (size != 0) {
+	    int [] stored = new int[size];
+	    System.arraycopy(level, 0, stored, 0, size);
+	    levels.add(stored);
+	    int nextSize = 0;
+	    for(int i=0; i < size; i++) {
+		for(int c = childStart(level[i]); c < childEnd(level[i]); c++) {
+		    int node = child(c);
+		    if (!visited[node]) {
+			visited[node] = true;
+			next[nextSize++] = node;
+		    }
+		}
+	    }
+	    int [] temp = level;
+	    level = next;
+	    next = temp;
+	    size = nextSize;
+	}
+	return levels.toArray(new int[levels.size()][]);
     }
     
     /**
@@ -100,15 +348,12 @@ public class GraphADS implements Serializable {
      */
     public ArrayList<HashSet<Long>> ReverseLevelBasedTopologicalSort() {
 	ArrayList<HashSet<Long>> topologicalSort = new ArrayList<HashSet<Long>> ();
-	HashSet<Long> visited = new HashSet<Long> ();
-	topologicalSort.add(roots);
-	insertIntoVisited(roots,visited);
-	HashSet<Long> storeNext;
-	HashSet<Long> temp = roots;
-	while ((storeNext = getNextLevel(temp,visited)).size() != 0) {
-	    topologicalSort.add(storeNext);
-	    insertIntoVisited(storeNext,visited);
-	    temp = storeNext;
+	int [][] levels = levelSort();
+	for(int i=0; i < levels.length; i++) {
+	    HashSet<Long> level = new HashSet<Long> ();
+	    for(int j=0; j < levels[i].length; j++)
+		level.add(concept(levels[i][j]));
+	    topologicalSort.add(level);
 	}
 	return topologicalSort;
     }
@@ -0,0 +1,151 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The <code>GraphADSCompatibilityTest</code> class checks that a graph
+ * serialized by the <code>GraphADS</code> class before its compressed
+ * representation is restored whole, including an edge from a parent in
+ * another ontology, and that it survives serialization and a graph store.
+ * It exits with a non-zero status on failure.
+ *
+ * Usage : GraphADSCompatibilityTest
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class GraphADSCompatibilityTest {
+
+    /**
+     * Graph "test" of concepts 100 to 104, serialized by the original class :
+     * 100 -> {101, 102}, 101 -> {103}, 102 -> {103, 104}, root 100, and the
+     * concept 50 of another ontology -> {102}.
+     */
+    static final String BASELINE_GRAPH =
+	"aced00057372000d616d6d6f2e4772617068414453ef13ebcc215c0150020005" +
+	"4a00066c656e6774684a000a7374617274496e6465784c000d61646a6163656e" +
+	"63794c6973747400134c6a6176612f7574696c2f486173684d61703b4c00046e" +
+	"616d657400124c6a6176612f6c616e672f537472696e673b4c0005726f6f7473" +
+	"7400134c6a6176612f7574696c2f486173685365743b78700000000000000005" +
+	"0000000000000064737200116a6176612e7574696c2e486173684d61700507da" +
+	"c1c31660d103000246000a6c6f6164466163746f724900097468726573686f6c" +
+	"6478703f4000000000000c770800000010000000047372000e6a6176612e6c61" +
+	"6e672e4c6f6e673b8be490cc8f23df0200014a000576616c7565787200106a61" +
+	"76612e6c616e672e4e756d62657286ac951d0b94e08b02000078700000000000" +
+	"000032737200116a6176612e7574696c2e48617368536574ba44859596b8b734" +
+	"0300007870770c000000103f400000000000017371007e000700000000000000" +
+	"66787371007e000700000000000000647371007e000a770c000000103f400000" +
+	"000000027371007e0007000000000000006571007e000c7871007e000f737100" +
+	"7e000a770c000000103f400000000000017371007e0007000000000000006778" +
+	"71007e000c7371007e000a770c000000103f4000000000000271007e00117371" +
+	"007e000700000000000000687878740004746573747371007e000a770c000000" +
+	"103f4000000000000171007e000d78";
+
+    static int failures = 0;
+
+    static void check(boolean condition, String message) {
+	if (!condition) {
+	    failures ++;
+	    System.out.println("FAILED : " + message);
+	}
+    }
+
+    static byte [] decode(String hex) {
+	byte [] bytes = new byte[hex.length() / 2];
+	for(int i=0; i < bytes.length; i++)
+	    bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+	return bytes;
+    }
+
+    /**
+     * Children of a concept.
+     */
+    static HashSet<Long> children(GraphADS graph, long concept) {
+	HashSet<Long> result = new HashSet<Long> ();
+	int node = graph.index(concept);
+	for(int c = graph.childStart(node); c < graph.childEnd(node); c++)
+	    result.add(graph.concept(graph.child(c)));
+	return result;
+    }
+
+    /**
+     * Parents of a concept within the ontology.
+     */
+    static HashSet<Long> parents(GraphADS graph, long concept) {
+	HashSet<Long> result = new HashSet<Long> ();
+	int node = graph.index(concept);
+	for(int p = graph.parentStart(node); p < graph.parentEnd(node); p++)
+	    result.add(graph.concept(graph.parent(p)));
+	return result;
+    }
+
+    static HashSet<Long> set(long... concepts) {
+	HashSet<Long> result = new HashSet<Long> ();
+	for(int i=0; i < concepts.length; i++)
+	    result.add(concepts[i]);
+	return result;
+    }
+
+    /**
+     * Checks the graph of the fixture.
+     */
+    static void checkGraph(GraphADS graph, String origin) {
+	check(graph != null, origin + " : graph restored");
+	if (graph == null)
+	    return;
+	check("test".equals(graph.name) && graph.startIndex == 100 && graph.length == 5, origin + " : name and range");
+	check(graph.roots.equals(set(100)), origin + " : roots");
+	check(children(graph,100).equals(set(101,102)), origin + " : children of 100");
+	check(children(graph,102).equals(set(103,104)), origin + " : children of 102");
+	check(children(graph,104).isEmpty(), origin + " : children of 104");
+	check(parents(graph,103).equals(set(101,102)), origin + " : parents of 103");
+	check(parents(graph,102).equals(set(100)), origin + " : parents of 102 in the ontology");
+	HashMap<Long,HashSet<Long>> external = new HashMap<Long,HashSet<Long>> ();
+	external.put(50L,set(102));
+	check(graph.getExternalEdges().equals(external), origin + " : edge from the other ontology kept");
+	int [][] levels = graph.levelSort();
+	int nodes = 0;
+	for(int i=0; i < levels.length; i++)
+	    nodes += levels[i].length;
+	check(nodes == 5, origin + " : levels cover the graph");
+    }
+
+    public static void main(String [] args) throws Exception {
+	ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(decode(BASELINE_GRAPH)));
+	GraphADS graph = (GraphADS) in.readObject();
+	in.close();
+	checkGraph(graph,"baseline");
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ObjectOutputStream out = new ObjectOutputStream(bytes);
+	out.writeObject(graph);
+	out.close();
+	in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	checkGraph((GraphADS) in.readObject(),"serialized");
+	in.close();
+
+	File store = File.createTempFile("graph",".obj");
+	SerializableGraphADS sga = new SerializableGraphADS();
+	sga.ontologyDAG = graph;
+	sga.writeGraphStore(store.getPath());
+	checkGraph(sga.restoreSerializableObject(store.getPath()),"graph store");
+	store.delete();
+
+	System.out.println(failures == 0 ? "OK" : failures + " failures");
+	if (failures != 0)
+	    System.exit(1);
+    }
+
+}
@@ -9,24 +9,100 @@ import java.io.ObjectInputStream;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import java.sql.ResultSet;
 
 /**
  * The class <code>IdMaps</code> encapsulates a mapping from ontology concepts 
- * to numerical identifiers.
+ * to numerical identifiers. The mapping is either a hashmap, or an id map
+ * store : a table of offsets indexed by identifier into a blob of UTF-8 
+ * names, followed by the identifiers sorted on their names. A store is 
+ * memory-mapped on first use and names are decoded when asked for.
  */
 public class IdMaps implements Serializable {
 
+    /**
+     * Serialization identifier of the hashmap-only format, so that mappings
+     * serialized with it can still be restored.
+     */
+    private static final long serialVersionUID = 5325385501148338578L;
+
+    /**
+     * Magic number and version of the id map store format.
+     */
+    static final int MAGIC = 0x414d4d49;
+
+    static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header of a store in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+
     /**
      * Hashmap to map integer identifiers to string concepts.
      */
     HashMap<Long,String> idMaps;
 
+    /**
+     * Reverse hashmap, built on the first name lookup of a hashmap.
+     */
+    transient HashMap<String,Long> nameMaps;
+
+    /**
+     * Name of the file the mapping is read from, opened on first use. A
+     * mapping read from a file is serialized with its names, so that it does
+     * not depend on the file, see <code>writeReplace</code>.
+     */
+    String objectname;
+
+    /**
+     * Smallest identifier and number of identifiers of a store.
+     */
+    transient long firstId;
+
+    transient int idCount;
+
+    /**
+     * Offsets of the names in the blob indexed by identifier, with a final
+     * end offset; empty names are absent identifiers.
+     */
+    transient IntBuffer offsets;
+
+    /**
+     * Identifier offsets sorted on the UTF-8 bytes of their names.
+     */
+    transient IntBuffer sortedIds;
+
+    /**
+     * UTF-8 names.
+     */
+    transient ByteBuffer names;
+
+    /**
+     * Whether the file has been opened.
+     */
+    transient boolean opened;
+
     /**
      * Copy constructor for initializing identifiers.
      */
@@ -40,19 +116,82 @@ public class IdMaps implements Serializable {
      *
      */
     public IdMaps(String objectname) {
-	this.idMaps = restoreIdMap(objectname);
+	this.objectname = objectname;
     }
 
     public IdMaps() {
 
     }
 
+    /**
+     * Opens the file of the mapping on first use : a store is 
+     * memory-mapped, a serialized hashmap is restored.
+     * @return null.
+     */
+    private synchronized void open() {
+	if (opened || objectname == null)
+	    return;
+	opened = true;
+	try {
+	    DataInputStream in = new DataInputStream(new FileInputStream(objectname));
+	    boolean store;
+	    try {
+		store = in.available() >= 4 && in.readInt() == MAGIC;
+	    } finally {
+		in.close();
+	    }
+	    if (store)
+		openIdMapStore(objectname);
+	    else
+		this.idMaps = restoreIdMap(objectname);
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	}
+    }
+
+    /**
+     * Serializes a mapping read from a file as the hashmap of its names, so
+     * that serialized objects holding it, such as mappings, can be restored
+     * after the file is moved or converted.
+     * @return Mapping to serialize.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+	if (objectname == null)
+	    return this;
+	open();
+	return new IdMaps(getIdMap());
+    }
+
+    /**
+     * Gets all the names of the mapping.
+     * @return Hashmap of the identifiers to their names.
+     */
+    private HashMap<Long,String> getIdMap() {
+	if (offsets == null)
+	    return idMaps == null ? new HashMap<Long,String> () : idMaps;
+	HashMap<Long,String> idMap = new HashMap<Long,String> ();
+	for(int id=0; id < idCount; id++) {
+	    if (offsets.get(id + 1) != offsets.get(id))
+		idMap.put(firstId + id, decode(id));
+	}
+	return idMap;
+    }
+
     /**
      * Gets name of a concept identifier.
      * @param node Numerical identifier for node.
      * @return Concept name.
      */
     public String getName(Long node) {
+	open();
+	if (offsets != null) {
+	    long id = node - firstId;
+	    if (id < 0 || id >= idCount)
+		return "";
+	    return decode((int) id);
+	}
+	if (idMaps == null)
+	    return "";
 	String name = idMaps.get(node);
 	if (name == null)
 	    return "";
@@ -60,9 +199,187 @@ public class IdMaps implements Serializable {
 	    return name;
     }
 
+    /**
+     * Gets the identifier of a concept name.
+     * @param name Concept name.
+     * @return Numerical identifier, or null if no concept has the name.
+     */
     public String getID(String name) {
-	
+	open();
+	if (offsets != null) {
+	    Long id = searchName(name);
+	    return id == null ? null : id.toString();
+	}
+	if (idMaps == null)
+	    return null;
+	synchronized (this) {
+	    if (nameMaps == null) {
+		nameMaps = new HashMap<String,Long> ();
+		Iterator entries = idMaps.entrySet().iterator();
+		while(entries.hasNext()) {
+		    Map.Entry entry = (Map.Entry) entries.next();
+		    if (!nameMaps.containsKey(entry.getValue()))
+			nameMaps.put((String) entry.getValue(), (Long) entry.getKey());
+		}
+	    }
+	}
+	Long id = nameMaps.get(name);
+	return id == null ? null : id.toString();
+    }
+
+    /**
+     * Decodes a name of the store.
+     * @param id Offset of the identifier.
+     * @return Name, empty if the identifier has none.
+     */
+    private String decode(int id) {
+	int start = offsets.get(id);
+	byte [] bytes = new byte[offsets.get(id + 1) - start];
+	ByteBuffer name = names.duplicate();
+	name.position(start);
+	name.get(bytes);
+	try {
+	    return new String(bytes,"UTF-8");
+	} catch (Exception e) {
+	    return "";
+	}
+    }
+
+    /**
+     * Compares a name of the store with UTF-8 bytes, as unsigned bytes.
+     * @param id Offset of the identifier.
+     * @param key UTF-8 bytes.
+     * @return Negative, zero or positive as the name is before, equal to or after the key.
+     */
+    private int compare(int id, byte [] key) {
+	int start = offsets.get(id);
+	int length = offsets.get(id + 1) - start;
+	for(int i=0; i < length && i < key.length; i++) {
+	    int difference = (names.get(start + i) & 0xff) - (key[i] & 0xff);
+	    if (difference != 0)
+		return difference;
+	}
+	return length - key.length;
+    }
+
+    /**
+     * Binary search of a name in the sorted identifiers of the store.
+     * @param name Concept name.
+     * @return Smallest identifier with the name, or null.
+     */
+    private Long searchName(String name) {
+	try {
+	    byte [] key = name.getBytes("UTF-8");
+	    int low = 0, high = sortedIds.limit();
+	    while (low < high) {
+		int middle = (low + high) >>> 1;
+		if (compare(sortedIds.get(middle), key) < 0)
+		    low = middle + 1;
+		else
+		    high = middle;
+	    }
+	    if (low < sortedIds.limit() && compare(sortedIds.get(low), key) == 0)
+		return firstId + sortedIds.get(low);
+	    return null;
+	} catch (Exception e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Method to map an id map store.
+     * @param filename Name of the file.
+     * @return null.
+     */
+    private void openIdMapStore(String filename) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(filename,"r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		throw new IOException("Not an id map store : " + filename);
+	    firstId = buffer.getLong(8);
+	    idCount = buffer.getInt(16);
+	    int nameCount = buffer.getInt(20);
+	    int blobBytes = buffer.getInt(24);
+	    int position = HEADER_SIZE;
+	    buffer.position(position);
+	    offsets = buffer.slice().asIntBuffer();
+	    offsets.limit(idCount + 1);
+	    position += 4 * (idCount + 1);
+	    buffer.position(position);
+	    sortedIds = buffer.slice().asIntBuffer();
+	    sortedIds.limit(nameCount);
+	    position += 4 * nameCount;
+	    buffer.position(position);
+	    names = buffer.slice();
+	    names.limit(blobBytes);
+	} finally {
+	    file.close();
+	}
+    }
 
+    /**
+     * Method to write a hashmap as an id map store. The store is written
+     * next to the file and renamed over it, so that a failed write leaves
+     * the file as it was.
+     * @param filename Name of the file.
+     * @param idMap Hashmap containing the mappings.
+     * @return null.
+     */
+    public void writeIdMapStore(String filename, HashMap<Long,String> idMap) throws IOException {
+	long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+	Iterator keys = idMap.keySet().iterator();
+	while(keys.hasNext()) {
+	    long id = (Long) keys.next();
+	    first = Math.min(first, id);
+	    last = Math.max(last, id);
+	}
+	int count = idMap.size() == 0 ? 0 : (int) (last - first + 1);
+	final byte [][] encoded = new byte[count][];
+	int [] offset = new int[count + 1];
+	ArrayList<Integer> named = new ArrayList<Integer> ();
+	for(int i=0; i < count; i++) {
+	    String name = idMap.get(first + i);
+	    encoded[i] = name == null ? new byte[0] : name.getBytes("UTF-8");
+	    offset[i + 1] = offset[i] + encoded[i].length;
+	    if (name != null)
+		named.add(i);
+	}
+	Integer [] sorted = named.toArray(new Integer[named.size()]);
+	// Equal names keep the order of their identifiers, the search finds the smallest.
+	Arrays.sort(sorted, new Comparator<Integer> () {
+		public int compare(Integer a, Integer b) {
+		    byte [] x = encoded[a];
+		    byte [] y = encoded[b];
+		    for(int i=0; i < x.length && i < y.length; i++) {
+			int difference = (x[i] & 0xff) - (y[i] & 0xff);
+			if (difference != 0)
+			    return difference;
+		    }
+		    return x.length != y.length ? x.length - y.length : a - b;
+		}
+	    });
+	File temp = new File(filename + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(count == 0 ? 0 : first);
+	    out.writeInt(count);
+	    out.writeInt(sorted.length);
+	    out.writeInt(offset[count]);
+	    out.writeInt(0);
+	    for(int i=0; i <= count; i++)
+		out.writeInt(offset[i]);
+	    for(int i=0; i < sorted.length; i++)
+		out.writeInt(sorted[i]);
+	    for(int i=0; i < count; i++)
+		out.write(encoded[i]);
+	} finally {
+	    out.close();
+	}
+	AtomicFiles.replace(temp,filename);
     }
 
     /**
@@ -106,6 +423,29 @@ public class IdMaps implements Serializable {
 
     public static void main(String [] args) throws Exception {
 
+	// Converts serialized hashmaps to id map stores in place. A file that
+	// cannot be read, e.g. a store already, is left as it is.
+	if (args[0].equals("-convert")) {
+	    int failures = 0;
+	    for(int i=1; i < args.length; i++) {
+		IdMaps idMap = new IdMaps();
+		HashMap<Long,String> idMaps = idMap.restoreIdMap(args[i]);
+		if (idMaps == null) {
+		    System.out.println("Not converting " + args[i] + " : not a serialized hashmap");
+		    failures ++;
+		    continue;
+		}
+		try {
+		    idMap.writeIdMapStore(args[i],idMaps);
+		} catch (IOException e) {
+		    System.out.println("Not converting " + args[i] + " : " + e.getMessage());
+		    failures ++;
+		}
+	    }
+	    if (failures > 0)
+		System.exit(1);
+	    return;
+	}
 	IdMaps idMap = new IdMaps(args[0]);
 	System.out.println(idMap.getName(new Long(5951525)));
 	/*   HashMap<Long,String> idMaps = new HashMap<Long,String> ();
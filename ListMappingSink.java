@@ -0,0 +1,80 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.util.ArrayList;
+
+/**
+ * The <code>ListMappingSink</code> class keeps the mappings of a run in
+ * memory, as the <code>Mapping</code> objects written to the serialized
+ * mapping files, and can pass them on to another sink, e.g. one printing
+ * them.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class ListMappingSink implements MappingSink {
+
+    ArrayList<Mapping> mappings = new ArrayList<Mapping> ();
+
+    IdMaps sourceIdMap;
+
+    IdMaps destinationIdMap;
+
+    IdMaps contextIdMap;
+
+    /**
+     * Sink the mappings are passed on to, or null.
+     */
+    MappingSink next;
+
+    /**
+     * Constructor initializes an empty list.
+     * @param sourceIdMap Names of the source concepts.
+     * @param destinationIdMap Names of the destination concepts.
+     * @param contextIdMap Names of the context concepts.
+     * @param next Sink the mappings are passed on to, or null.
+     */
+    public ListMappingSink(IdMaps sourceIdMap, IdMaps destinationIdMap, IdMaps contextIdMap, MappingSink next) {
+	this.sourceIdMap = sourceIdMap;
+	this.destinationIdMap = destinationIdMap;
+	this.contextIdMap = contextIdMap;
+	this.next = next;
+    }
+
+    /**
+     * Method to add a mapping to the list.
+     */
+    public synchronized void write(long sourceConcept, double sourceInfo, long destinationConcept, double destinationInfo, long contextConcept, double contextInfo, double bayesFactor) {
+	mappings.add(new Mapping(sourceConcept,sourceInfo,destinationConcept,destinationInfo,contextConcept,contextInfo,bayesFactor,sourceIdMap,destinationIdMap,contextIdMap));
+	if (next != null)
+	    next.write(sourceConcept,sourceInfo,destinationConcept,destinationInfo,contextConcept,contextInfo,bayesFactor);
+    }
+
+    /**
+     * Method to flush the next sink.
+     */
+    public synchronized long flush() {
+	return next == null ? 0 : next.flush();
+    }
+
+    /**
+     * Method to close the next sink. The list is kept.
+     */
+    public synchronized void close() {
+	if (next != null)
+	    next.close();
+    }
+
+    /**
+     * Gets the mappings written so far.
+     * @return List of mappings.
+     */
+    public synchronized ArrayList<Mapping> getMappings() {
+	return mappings;
+    }
+
+}
@@ -8,9 +8,24 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.io.ObjectOutputStream;
 import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
 
 
 /**
@@ -29,9 +44,9 @@ public class MappingAlgorithm {
     GraphADS contextOntology;
 
     /**
-       Handler to the B-tree index containing cached statistics.
+       Handler to the cached statistics, by default the B-tree index.
      **/
-    CachingStatisticsSearching searcher;
+    StatisticsSearching searcher;
 
     /**
        Model Scoring mechanism AIC or BIC or Mutual Information.
@@ -51,6 +66,88 @@ public class MappingAlgorithm {
 
     Long numOfComps;
 
+    /**
+       Whether the destination traversal fetches the counts of all destination concepts for a (source, context) pair in one batched call.
+     **/
+    boolean batchDestinationCounts = true;
+
+    /**
+       Whether a destination subtree is pruned when none of its elements co-occur with the source under the context. Needs an index built with hierarchy propagation. Such subtrees can only give maps of negative association, which are then skipped.
+     **/
+    boolean subtreePruning = false;
+
+    /**
+       Concept sketches used to discard triples before exact counting, or null.
+     **/
+    ConceptSketches sketches;
+
+    /**
+       Triples whose bounded co-occurrence count falls below the cutoff are discarded.
+     **/
+    double sketchCutoff = 1.0;
+
+    /**
+       Number of standard deviations the sketch estimate is raised by.
+     **/
+    double sketchConfidence = 2.0;
+
+    /**
+       Number of triples discarded from their sketches, and of exact count evaluations.
+     **/
+    AtomicLong sketchPruned = new AtomicLong();
+
+    AtomicLong exactEvaluations = new AtomicLong();
+
+    /**
+       Whether destination nodes are decided from bounds on their Bayes factor before exact counting, and number of exact evaluations the bounds saved.
+     **/
+    boolean boundPruning = false;
+
+    AtomicLong boundPruned = new AtomicLong();
+
+    /**
+       Number of mappings kept per source and context node, or zero to keep every mapping above the threshold.
+     **/
+    int topK = 0;
+
+    /**
+       Number of threads the context traversal runs on, one for the sequential traversal.
+     **/
+    int contextThreads = 1;
+
+    /**
+       Sink the mappings are streamed to, or null to print them and keep them in a list written to a mapping object at the end of a run.
+     **/
+    MappingSink sink;
+
+    /**
+       Number of source concepts in a tile of the parallel brute force, and number of tiles each thread runs between two checkpoints.
+     **/
+    int sourceTile = 256;
+
+    int tilesPerThread = 16;
+
+    /**
+       Identifies a brute force checkpoint file, "AMMT".
+     **/
+    static final int TILE_MAGIC = 0x414d4d54;
+
+    static final int TILE_VERSION = 1;
+
+    /**
+       File the context traversal is checkpointed to, or null, and least time in milliseconds between two checkpoints.
+     **/
+    String checkpointName;
+
+    long checkpointInterval = 60000;
+
+    /**
+       Identifies a context traversal checkpoint file, "AMMC".
+     **/
+    static final int CHECKPOINT_MAGIC = 0x414d4d43;
+
+    static final int CHECKPOINT_VERSION = 2;
+
     /**
        Constructor for initializing the mapping algorithm.
      **/
@@ -80,6 +177,13 @@ public class MappingAlgorithm {
        Constructor for initializing the mapping algorithm.
      **/   
     public MappingAlgorithm(String sObjectName, String dObjectName, String cObjectName, String indexName, String sourceidMap,String destinationidMap,String contextidMap, boolean serialized) {
+	this(sObjectName,dObjectName,cObjectName,new CachingStatisticsSearching(indexName),sourceidMap,destinationidMap,contextidMap,serialized);
+    }
+
+     /**
+       Constructor for initializing the mapping algorithm with a statistics engine already opened, e.g. over an index opened for concurrent reads.
+     **/
+    public MappingAlgorithm(String sObjectName, String dObjectName, String cObjectName, StatisticsSearching searcher, String sourceidMap,String destinationidMap,String contextidMap, boolean serialized) {
 	this.sourceOntology = (new SerializableGraphADS()).restoreSerializableObject(sObjectName);
 	this.destinationOntology =  (new SerializableGraphADS()).restoreSerializableObject(dObjectName);
 	if (this.sourceOntology.length > this.destinationOntology.length) {
@@ -96,23 +200,136 @@ public class MappingAlgorithm {
 
 	this.contextIdMap = new IdMaps(contextidMap);
 	this.contextOntology =  (new SerializableGraphADS()).restoreSerializableObject(cObjectName);
-	this.searcher = new CachingStatisticsSearching(indexName);
+	this.searcher = searcher;
 	this.scoring = new ModelScoring(ScoreType.CI);
 	this.infocontent = new InformationContent();
 
     }
 
+     /**
+       Constructor for initializing the mapping algorithm with the graphs and id maps of a registry shared by several jobs.
+     **/
+    public MappingAlgorithm(String sID, String dID, String cID, String indexName, OntologyRegistry registry) {
+	this(sID,dID,cID,new CachingStatisticsSearching(indexName),registry);
+    }
+
+     /**
+       Constructor for initializing the mapping algorithm with the graphs and id maps of a registry and a statistics engine, both shared by several jobs.
+     **/
+    public MappingAlgorithm(String sID, String dID, String cID, StatisticsSearching searcher, OntologyRegistry registry) {
+	this.sourceOntology = registry.getGraph(sID);
+	this.destinationOntology = registry.getGraph(dID);
+	if (this.sourceOntology.length > this.destinationOntology.length) {
+	    GraphADS temp = this.sourceOntology;
+	    this.sourceOntology = this.destinationOntology;
+	    this.destinationOntology = temp;
+	    this.sourceIdMap = registry.getIdMaps(dID);
+	    this.destinationIdMap = registry.getIdMaps(sID);
+	} else {
+	    this.sourceIdMap = registry.getIdMaps(sID);
+	    this.destinationIdMap = registry.getIdMaps(dID);
+	}
+	this.contextIdMap = registry.getIdMaps(cID);
+	this.contextOntology = registry.getGraph(cID);
+	this.searcher = searcher;
+	this.scoring = new ModelScoring(ScoreType.CI);
+	this.infocontent = new InformationContent();
+    }
+
+    /**
+       Sets the statistics engine used for counting, e.g. the in-memory BitmapStatisticsSearching, or a MemoizingStatisticsSearching in front of the index to cache the counts repeated across source nodes.
+     **/
+    public void setStatisticsSearching(StatisticsSearching searcher) {
+	this.searcher = searcher;
+    }
+
+    /**
+       Turns pruning of destination subtrees without co-occurrences on or off.
+     **/
+    public void setSubtreePruning(boolean subtreePruning) {
+	this.subtreePruning = subtreePruning;
+    }
+
+    /**
+       Turns early pruning from concept sketches on, or off if sketches is null.
+     **/
+    public void setSketchPruning(ConceptSketches sketches, double sketchCutoff) {
+	this.sketches = sketches;
+	this.sketchCutoff = sketchCutoff;
+    }
+
+    /**
+       Sets the sink the mappings are streamed to, or null to print them and keep them in a list written to a mapping object at the end of a run.
+     **/
+    public void setMappingSink(MappingSink sink) {
+	this.sink = sink;
+    }
+
+    /**
+       Turns bounding of the Bayes factor from marginal counts on or off. A node whose upper bound is at most the minimum threshold is marked, and one whose bounds lie between the two thresholds is expanded, both as the exact Bayes factor would have decided, so that the mappings are unchanged. The marginals are the count tables of a concept against itself, which a memoizing searcher keeps across source nodes.
+     **/
+    public void setBoundPruning(boolean boundPruning) {
+	this.boundPruning = boundPruning;
+    }
+
+    /**
+       Keeps only the k best mappings of each source node under each context node, or all of them if k is zero. Once k mappings are held, a destination node must beat the worst of them to be mapped, which with bound pruning lets more nodes go without exact counting.
+     **/
+    public void setTopK(int topK) {
+	this.topK = Math.max(0,topK);
+    }
+
+    /**
+       Checkpoints the context traversal of computeMappingsCI to a file, or not if checkpointName is null. A checkpoint holds the number of context nodes whose mappings are written, in the order of the sequential traversal, the length of the output up to them and the number of mappings in it. A run finding the checkpoint of the same traversal cuts the output back to that length and goes on from the next context node, so that each mapping is written once. The sink must be a ChannelMappingSink on a file opened without truncating it.
+     **/
+    public void setCheckpoint(String checkpointName, long checkpointInterval) {
+	this.checkpointName = checkpointName;
+	this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+       Destination node held among the best mappings of a source and context node.
+     **/
+    static class Candidate {
+
+	long node;
+
+	double bayesFactor;
+
+	Candidate(long node, double bayesFactor) {
+	    this.node = node;
+	    this.bayesFactor = bayesFactor;
+	}
+    }
+
+    /**
+       Orders candidates from the worst to the best, by Bayes factor then by destination node.
+     **/
+    static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate> () {
+	public int compare(Candidate first, Candidate second) {
+	    int order = Double.compare(first.bayesFactor,second.bayesFactor);
+	    if (order != 0)
+		return order;
+	    return first.node < second.node ? 1 : (first.node == second.node ? 0 : -1);
+	}
+    };
+
+    /**
+       Sets the number of threads the context traversal runs on. Above one, context subtrees are spread over a fork-join pool, and the statistics engine must serve concurrent calls, e.g. a MemoizingStatisticsSearching over a CachingStatisticsSearching opened for concurrent reads.
+     **/
+    public void setContextThreads(int contextThreads) {
+	this.contextThreads = Math.max(1,contextThreads);
+    }
+
     /**
        Populating the mapping data-structure with information content for each node.
      **/
-    private void map(long sNode, long tsCount, long dNode, long tdCount, long cNode, long tcCount, double bf, ArrayList<Mapping> mappings) {
+    private void map(long sNode, long tsCount, long dNode, long tdCount, long cNode, long tcCount, double bf, MappingSink mappings) {
 	double icS = infocontent.getInformationContent(searcher.getConceptCount(sNode),tsCount);
 	double icD = infocontent.getInformationContent(searcher.getConceptCount(dNode),tdCount);	 
 	double icC = infocontent.getInformationContent(searcher.getConceptCount(cNode),tcCount);
  
-	Mapping map = new Mapping(sNode,icS,dNode,icD,cNode,icC,bf,sourceIdMap,destinationIdMap,contextIdMap);
-	map.printMap();
-	mappings.add(map);
+	mappings.write(sNode,icS,dNode,icD,cNode,icC,bf);
 	
 	//	System.out.println("Mapping : " + sNode + ":" + icS + "," + dNode + ":" + icD + "," + cNode + ":" + icC + "," + bf);
     }
@@ -132,15 +349,28 @@ public class MappingAlgorithm {
     }
 
     /**
-       Depth-first expansion of ontology nodes.
+       Computing bayes factor for a destination node from the batched counts of its (source, context) pair.
      **/
-    private void expand(long dcompNode, HashSet<Long> nextlevelNodes,  HashMap<Long,HashSet<Long>> adjacencyList, HashSet<Long> visited ) {
-	 HashSet<Long> children = adjacencyList.get(dcompNode);
-	 if (children != null) {
-	     //	System.out.println(children);
-	     union(nextlevelNodes,children,visited);
-	 }
+    private double computeNodeMap(long [] destinationCounts, Long dNode, double alpha) {
+	int offset = 4 * ((int) (dNode - destinationOntology.startIndex));
+	long [] Counts = {destinationCounts[offset],destinationCounts[offset + 1],destinationCounts[offset + 2],destinationCounts[offset + 3]};
+	return scoring.getBayesFactorCI(Counts,alpha);
+    }
 
+    /**
+       Depth-first expansion of ontology nodes.
+     **/
+    private void expand(long dcompNode, HashSet<Long> nextlevelNodes,  GraphADS ontology, HashSet<Long> visited ) {
+	int node = ontology.index(dcompNode);
+	if (node == -1)
+	    return;
+	for(int c = ontology.childStart(node); c < ontology.childEnd(node); c++) {
+	    Long child = ontology.concept(ontology.child(c));
+	    if (!visited.contains(child)) {
+		nextlevelNodes.add(child);
+		visited.add(child);
+	    }
+	}
     }
 
     /**
@@ -158,113 +388,110 @@ public class MappingAlgorithm {
     }
 
     /**
-       Pushing nodes over stack for a depth first branch and bound algorithm.
+       Pushing nodes over stack for a depth first branch and bound algorithm. The stacked set mirrors the stack for constant-time membership.
      **/
-    private void push(ArrayList<Long> stackNodes, HashSet<Long> nodes, HashSet<Long> expanded) {
+    private void push(ArrayList<Long> stackNodes, HashSet<Long> stacked, HashSet<Long> nodes, HashSet<Long> expanded) {
 	Iterator nodeIterator = nodes.iterator();
 	while(nodeIterator.hasNext()) {
 	    Long node = (Long) nodeIterator.next();
-	    if (!expanded.contains(node) && !stackNodes.contains(node))
+	    if (!expanded.contains(node) && stacked.add(node))
 		stackNodes.add(node);
 	}
 
     }
 
     /**
-       Testing if a node is a part of marked nodes thathave been pruned.
+       Pushing the children of a node over stack for a depth first branch and bound algorithm.
      **/
-    private boolean markedContains(Long node, ArrayList<HashSet<Long>> markedNodes) {
-	if (markedNodes == null)
-	    return false;
-	for(int i=0; i < markedNodes.size(); i++) {
-	    if (markedNodes.get(i).contains(node)) 
-		return true;
+    private void push(ArrayList<Long> stackNodes, HashSet<Long> stacked, GraphADS ontology, Long node, HashSet<Long> expanded) {
+	int parent = ontology.index(node);
+	if (parent == -1)
+	    return;
+	for(int c = ontology.childStart(parent); c < ontology.childEnd(parent); c++) {
+	    Long child = ontology.concept(ontology.child(c));
+	    if (!expanded.contains(child) && stacked.add(child))
+		stackNodes.add(child);
 	}
+    }
 
-	return false;
+    /**
+       Popping the top of the stack.
+     **/
+    private void pop(ArrayList<Long> stackNodes, HashSet<Long> stacked) {
+	stacked.remove(stackNodes.remove(stackNodes.size() - 1));
     }
 
     /**
-       Concatenating marked nodes with unmarked nodes.
+       Testing if a node is a part of marked nodes thathave been pruned.
      **/
-    private void unionList(ArrayList<HashSet<Long>> uMarkedNodes, ArrayList<HashSet<Long>> markedNodes) {
-	if (markedNodes != null) {
-	    
-	    for(int i=0; i < markedNodes.size(); i++)
-		uMarkedNodes.add(markedNodes.get(i));
+    private boolean markedContains(Long node, ArrayList<PruneSet> markedNodes) {
+	for(int i=0; i < markedNodes.size(); i++) {
+	    if (markedNodes.get(i).contains(node)) 
+		return true;
 	}
+
+	return false;
     }
 
     /**
-       Extending the marked list of nodes based on the node under current consideration.
+       Collecting the marked nodes inherited from the ancestor contexts for the node under current consideration. Empty sets are left out, so that checks against the list cost nothing once they are.
      **/
-    private ArrayList<HashSet<Long>> markedMapListContains(Long sNode, ArrayList<HashMap<Long,ArrayList<HashSet<Long>>>> markedNodesMapList) {
-	ArrayList<HashSet<Long>> unionMarkedNodes = new ArrayList<HashSet<Long>> ();
+    private ArrayList<PruneSet> markedMapListContains(Long sNode, ArrayList<HashMap<Long,PruneSet>> markedNodesMapList) {
+	ArrayList<PruneSet> inheritedMarkedNodes = new ArrayList<PruneSet> (0);
 	for(int i=0; i < markedNodesMapList.size(); i++) {
-	    HashMap<Long,ArrayList<HashSet<Long>>> markedNodesMap = markedNodesMapList.get(i);
-	    ArrayList<HashSet<Long>> markedNodes = markedNodesMap.get(sNode);
-	    unionList(unionMarkedNodes,markedNodes);
+	    PruneSet markedNodes = markedNodesMapList.get(i).get(sNode);
+	    if (markedNodes != null && !markedNodes.isEmpty())
+		inheritedMarkedNodes.add(markedNodes);
 	}
-	return unionMarkedNodes;
+	return inheritedMarkedNodes;
     }
 
     /**
        Tests if the marked nodes contain the given set of root nodes.
      **/
-   private boolean markedRootContains(ArrayList<HashSet<Long>> markedNodes,HashSet<Long> roots) {
-       boolean result = true;
+   private boolean markedRootContains(ArrayList<PruneSet> markedNodes,HashSet<Long> roots) {
        Iterator rIterator = roots.iterator();
        while(rIterator.hasNext()) {
-	   result &= markedContains((Long)rIterator.next(),markedNodes);
-
+	   if (!markedContains((Long)rIterator.next(),markedNodes))
+	       return false;
        }
 
-       return result;
+       return true;
     }
 
     /**
-       Tests if the marked nodes contain the given list of root nodes.
-     **/
-    private boolean markedMapListRootContains(Long sNode, ArrayList<HashMap<Long,ArrayList<HashSet<Long>>>> markedNodesMapList, HashSet<Long> roots) {
-	ArrayList<HashSet<Long>> markedNodes = markedMapListContains(sNode,markedNodesMapList);
-	return markedRootContains(markedNodes,roots);
-
-	}
-
-    /**
-       Helper function for computing a three-dimensional depth first branch and bound traversal of the three ontology graphs.
+       Helper function for computing a three-dimensional depth first branch and bound traversal of the three ontology graphs. The destination nodes marked for the source nodes on the current path are kept in one prune set, a level per source node. Like the lists of sets it replaces, the returned map holds that prune set itself for every expanded source node rather than a copy, and it is empty once the traversal is over.
      **/
-    private HashMap<Long,ArrayList<HashSet<Long>>> depthFirstBranch(HashSet<Long> sNodes,long tsCount,HashMap<Long,HashSet<Long>> sadjacencyList, long cNode, long tcCount, HashMap<Long,HashSet<Long>> cadjacencyList ,HashSet<Long> dNodes, long dcCount, HashMap<Long,HashSet<Long>> dadjacencyList, ArrayList<HashMap<Long,ArrayList<HashSet<Long>>>> markedNodesMapList,ArrayList<Mapping> mappings ,double alpha, double minThreshold, double thresHold) {
+    private HashMap<Long,PruneSet> depthFirstBranch(HashSet<Long> sNodes,long tsCount,GraphADS sOntology, long cNode, long tcCount, GraphADS cOntology ,HashSet<Long> dNodes, long dcCount, GraphADS dOntology, ArrayList<HashMap<Long,PruneSet>> markedNodesMapList,MappingSink mappings ,double alpha, double minThreshold, double thresHold) {
 
 	ArrayList<Long> stackNodes = new ArrayList<Long>();
+	HashSet<Long> stacked = new HashSet<Long> ();
 	HashSet<Long> expanded = new HashSet<Long> ();
-	ArrayList<HashSet<Long>>markedNodes = new ArrayList<HashSet<Long>>();
+	PruneSet markedNodes = new PruneSet(dOntology.startIndex,dOntology.length);
 
-	HashMap<Long,ArrayList<HashSet<Long>>> markedNodesMap = new HashMap<Long,ArrayList<HashSet<Long>>> ();
+	HashMap<Long,PruneSet> markedNodesMap = new HashMap<Long,PruneSet> ();
 
-	push(stackNodes,sNodes,expanded);
+	push(stackNodes,stacked,sNodes,expanded);
 	
 	while(stackNodes.size() != 0) {
 
 	    int length = stackNodes.size();
-	    int markLength = markedNodes.size();
 
 	    Long topsNode = (Long) stackNodes.get(length - 1);
 	    if (expanded.contains(topsNode)) {
-		stackNodes.remove(length - 1);
+		pop(stackNodes,stacked);
 		markedNodesMap.put(topsNode,markedNodes);
-		markedNodes.remove(markLength - 1);
+		markedNodes.pop();
 
 	    } else {
-	        
-		HashSet<Long> newMarkedNodes = computeMarkedNodes(topsNode,tsCount,cNode,tcCount,dNodes,dcCount,dadjacencyList,markedNodes,markedMapListContains(topsNode,markedNodesMapList),mappings,alpha,minThreshold,thresHold);
-		markedNodes.add(newMarkedNodes);
 
-		    if (!markedRootContains(markedNodes,dNodes) && !markedMapListRootContains(topsNode,markedNodesMapList,dNodes)) { 
+		ArrayList<PruneSet> inheritedMarkedNodes = markedMapListContains(topsNode,markedNodesMapList);
+		markedNodes.push();
+		computeMarkedNodes(topsNode,tsCount,cNode,tcCount,dNodes,dcCount,dOntology,markedNodes,inheritedMarkedNodes,mappings,alpha,minThreshold,thresHold);
+
+		    if (!markedNodes.containsAll(dNodes) && (inheritedMarkedNodes.size() == 0 || !markedRootContains(inheritedMarkedNodes,dNodes))) { 
 	
-		    HashSet<Long> children = sadjacencyList.get(topsNode);
-		    if (children != null)
-			push(stackNodes,children,expanded);
+		    push(stackNodes,stacked,sOntology,topsNode,expanded);
 
 		    }
 
@@ -281,13 +508,18 @@ public class MappingAlgorithm {
     /**
        Depth first branch and bound algorithm for scalable computations of mappings.
      **/
-    private ArrayList<Mapping> depthFirstBranchBound(HashSet<Long> sNodes, long tsCount, HashMap<Long,HashSet<Long>> sadjacencyList ,HashSet<Long> cNodes, long tcCount, HashMap<Long,HashSet<Long>> cadjacencyList, HashSet<Long> dNodes, long dcCount, HashMap<Long,HashSet<Long>> dadjacencyList, ArrayList<Mapping> mappings, double alpha, double minThreshold, double thresHold) {
+    private MappingSink depthFirstBranchBound(HashSet<Long> sNodes, long tsCount, GraphADS sOntology ,HashSet<Long> cNodes, long tcCount, GraphADS cOntology, HashSet<Long> dNodes, long dcCount, GraphADS dOntology, MappingSink mappings, double alpha, double minThreshold, double thresHold) {
 	
+	// Checkpoints follow the replayed traversal, on a single thread if need be.
+	if (contextThreads > 1 || checkpointName != null)
+	    return depthFirstBranchBoundParallel(sNodes,tsCount,sOntology,cNodes,tcCount,cOntology,dNodes,dcCount,dOntology,mappings,alpha,minThreshold,thresHold);
+
 	ArrayList<Long> stackNodes = new ArrayList<Long> ();
+	HashSet<Long> stacked = new HashSet<Long> ();
 	HashSet<Long> expanded = new HashSet<Long> ();
-	ArrayList<HashMap<Long,ArrayList<HashSet<Long>>>> markedNodesMapList = new ArrayList<HashMap<Long,ArrayList<HashSet<Long>>>> ();
+	ArrayList<HashMap<Long,PruneSet>> markedNodesMapList = new ArrayList<HashMap<Long,PruneSet>> ();
 	
-	push(stackNodes,cNodes,expanded);
+	push(stackNodes,stacked,cNodes,expanded);
 	
 	while(stackNodes.size() != 0) {
 	    int length = stackNodes.size();
@@ -296,12 +528,12 @@ public class MappingAlgorithm {
 	    //System.out.println(length + ":" + markLength);
 	    //System.out.println(topNode + ":" + expanded);
 	    if (expanded.contains(topNode)) {
-		stackNodes.remove(length - 1);
+		pop(stackNodes,stacked);
 		markedNodesMapList.remove(markLength - 1);
 	    } else {
 
 		
-		HashMap<Long,ArrayList<HashSet<Long>>> newMarkedNodesMap = depthFirstBranch(sNodes,tsCount,sadjacencyList,topNode,tcCount,cadjacencyList,dNodes,dcCount,dadjacencyList,markedNodesMapList,mappings,alpha,minThreshold,thresHold);
+		HashMap<Long,PruneSet> newMarkedNodesMap = depthFirstBranch(sNodes,tsCount,sOntology,topNode,tcCount,cOntology,dNodes,dcCount,dOntology,markedNodesMapList,mappings,alpha,minThreshold,thresHold);
 		markedNodesMapList.add(newMarkedNodesMap);
 		//	System.out.println("------------------------");
 		//	System.out.println(topNode);
@@ -311,9 +543,7 @@ public class MappingAlgorithm {
 		//    System.out.println("CC");
 		//		System.out.println("-------------------------");
 		//	markedNodes.add(newMarkedNodes);
-		HashSet<Long> children = cadjacencyList.get(topNode);
-		if (children != null)
-		    push(stackNodes,children,expanded);
+		push(stackNodes,stacked,cOntology,topNode,expanded);
 	    
 		expanded.add(topNode);
 	    }
@@ -324,16 +554,370 @@ public class MappingAlgorithm {
     }
 
     /**
-       This function broadly takes in two nodes (say source and context), and performs a depth first (or breadth first) search on the destination dag. It generates a set of marked nodes and does not branch ahead in the sub-dag if a nodes is in the marked set. This allows to prune away large parts of the destination dag
+       Context traversal shared by the tasks of a parallel depth first branch and bound.
+     **/
+    class ContextTraversal {
+
+	HashSet<Long> sNodes;
+	long tsCount;
+	GraphADS sOntology;
+	long tcCount;
+	GraphADS cOntology;
+	HashSet<Long> dNodes;
+	long dcCount;
+	GraphADS dOntology;
+	double alpha;
+	double minThreshold;
+	double thresHold;
+
+	/**
+	   Context nodes in the order the sequential traversal expands them, the nodes first expanded below each of them, and the mappings found under each of them.
+	 **/
+	ArrayList<Long> contextNodes = new ArrayList<Long> ();
+
+	ArrayList<ArrayList<Integer>> subtrees = new ArrayList<ArrayList<Integer>> ();
+
+	ArrayList<MappingBuffer> buffers = new ArrayList<MappingBuffer> ();
+
+	ArrayList<Integer> topNodes = new ArrayList<Integer> ();
+
+	/**
+	   Sink the buffers are written to, and position of the first buffer not written yet.
+	 **/
+	MappingSink sink;
+
+	int written = 0;
+
+	/**
+	   Position of the parent of each context node, -1 for the roots.
+	 **/
+	ArrayList<Integer> parents = new ArrayList<Integer> ();
+
+	/**
+	   Whether the traversal is checkpointed, number of mappings written and time of the last checkpoint.
+	 **/
+	boolean checkpointing = false;
+
+	long mappingCount = 0;
+
+	long lastCheckpoint;
+
+	/**
+	   Keeps the mappings found under a context node, then writes out the buffers completed in the sequential order and releases them.
+	 **/
+	synchronized void complete(int node, MappingBuffer buffer) {
+	    buffers.set(node,buffer);
+	    while (written < buffers.size() && buffers.get(written) != null) {
+		buffers.get(written).writeTo(sink);
+		mappingCount += buffers.get(written).size;
+		buffers.set(written,MappingBuffer.WRITTEN);
+		written ++;
+	    }
+	    if (checkpointing && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)
+		checkpoint();
+	}
+
+	/**
+	   Writes a checkpoint of the buffers written so far. A failed checkpoint is reported and the traversal goes on.
+	 **/
+	synchronized void checkpoint() {
+	    try {
+		writeCheckpoint(this);
+	    } catch (IOException e) {
+		System.out.println("Exception : " + e.getMessage());
+	    }
+	    lastCheckpoint = System.currentTimeMillis();
+	}
+
+	/**
+	   Identifies the traversal : the ontologies, the order of the context nodes and the options that change the mappings.
+	 **/
+	long [] getFingerprint() {
+	    long order = 0;
+	    for(int i=0; i < contextNodes.size(); i++)
+		order = 31 * order + contextNodes.get(i);
+	    return new long [] {sOntology.startIndex,sOntology.length,dOntology.startIndex,dOntology.length,cOntology.startIndex,cOntology.length,contextNodes.size(),order,Double.doubleToLongBits(alpha),Double.doubleToLongBits(minThreshold),Double.doubleToLongBits(thresHold),topK,subtreePruning ? 1 : 0,sketches == null ? -1 : Double.doubleToLongBits(sketchCutoff),sketches == null ? -1 : Double.doubleToLongBits(sketchConfidence)};
+	}
+    }
+
+    /**
+       Mappings kept in memory until they can be written in order.
+     **/
+    static class MappingBuffer implements MappingSink {
+
+	/**
+	   Placeholder of a buffer written out.
+	 **/
+	static final MappingBuffer WRITTEN = new MappingBuffer();
+
+	long [] concepts = new long[0];
+
+	double [] values = new double[0];
+
+	int size = 0;
+
+	public void write(long sourceConcept, double sourceInfo, long destinationConcept, double destinationInfo, long contextConcept, double contextInfo, double bayesFactor) {
+	    if (3 * size == concepts.length) {
+		concepts = Arrays.copyOf(concepts,Math.max(12,2 * concepts.length));
+		values = Arrays.copyOf(values,Math.max(16,2 * values.length));
+	    }
+	    concepts[3 * size] = sourceConcept;
+	    concepts[3 * size + 1] = destinationConcept;
+	    concepts[3 * size + 2] = contextConcept;
+	    values[4 * size] = sourceInfo;
+	    values[4 * size + 1] = destinationInfo;
+	    values[4 * size + 2] = contextInfo;
+	    values[4 * size + 3] = bayesFactor;
+	    size ++;
+	}
+
+	public long flush() {
+	    return 0;
+	}
+
+	public void close() {
+	}
+
+	/**
+	   Writes the mappings to another sink, in the order they came.
+	 **/
+	void writeTo(MappingSink sink) {
+	    for(int i=0; i < size; i++)
+		sink.write(concepts[3 * i],values[4 * i],concepts[3 * i + 1],values[4 * i + 1],concepts[3 * i + 2],values[4 * i + 2],values[4 * i + 3]);
+	}
+    }
+
+    /**
+       Computes the mappings under a context node, then forks the subtrees below it. The marked nodes inherited from the ancestors are never modified, each subtree gets its own copy of the list extended with the marked nodes of its parent.
+     **/
+    class ContextTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	ContextTraversal traversal;
+
+	/**
+	   Position of the context node, or -1 for the context roots.
+	 **/
+	int node;
+
+	ArrayList<HashMap<Long,PruneSet>> markedNodesMapList;
+
+	ContextTask(ContextTraversal traversal, int node, ArrayList<HashMap<Long,PruneSet>> markedNodesMapList) {
+	    this.traversal = traversal;
+	    this.node = node;
+	    this.markedNodesMapList = markedNodesMapList;
+	}
+
+	protected void compute() {
+	    ContextTraversal t = traversal;
+	    ArrayList<Integer> subtree = t.topNodes;
+	    ArrayList<HashMap<Long,PruneSet>> inherited = markedNodesMapList;
+	    if (node != -1) {
+		MappingBuffer buffer = new MappingBuffer();
+		HashMap<Long,PruneSet> markedNodesMap = depthFirstBranch(t.sNodes,t.tsCount,t.sOntology,t.contextNodes.get(node),t.tcCount,t.cOntology,t.dNodes,t.dcCount,t.dOntology,markedNodesMapList,buffer,t.alpha,t.minThreshold,t.thresHold);
+		t.complete(node,buffer);
+		subtree = t.subtrees.get(node);
+		if (subtree.size() == 0)
+		    return;
+		inherited = new ArrayList<HashMap<Long,PruneSet>> (markedNodesMapList);
+		inherited.add(markedNodesMap);
+	    }
+	    ArrayList<ContextTask> tasks = new ArrayList<ContextTask> ();
+	    for(int i=0; i < subtree.size(); i++)
+		tasks.add(new ContextTask(t,subtree.get(i),inherited));
+	    invokeAll(tasks);
+	}
+    }
+
+    /**
+       Parallel depth first branch and bound algorithm. The context traversal of depthFirstBranchBound is first replayed without counting, which gives the order of the context nodes and the ancestors whose marked nodes each one inherits. The context subtrees then run on a fork-join pool, each node filling its own mapping buffer, and the buffers are written to the sink in the sequential order as soon as those before them are, so that the mappings are those of the sequential run. With checkpoints, the context nodes whose mappings a checkpoint holds are skipped, and the nodes left whose parent is written start from no inherited marked nodes, as those of a context node are empty once its traversal is over.
+     **/
+    private MappingSink depthFirstBranchBoundParallel(HashSet<Long> sNodes, long tsCount, GraphADS sOntology ,HashSet<Long> cNodes, long tcCount, GraphADS cOntology, HashSet<Long> dNodes, long dcCount, GraphADS dOntology, MappingSink mappings, double alpha, double minThreshold, double thresHold) {
+	ContextTraversal traversal = new ContextTraversal();
+	traversal.sNodes = sNodes;
+	traversal.tsCount = tsCount;
+	traversal.sOntology = sOntology;
+	traversal.tcCount = tcCount;
+	traversal.cOntology = cOntology;
+	traversal.dNodes = dNodes;
+	traversal.dcCount = dcCount;
+	traversal.dOntology = dOntology;
+	traversal.alpha = alpha;
+	traversal.minThreshold = minThreshold;
+	traversal.thresHold = thresHold;
+	traversal.sink = mappings;
+
+	// Same stack discipline as depthFirstBranchBound, the path standing for markedNodesMapList.
+	ArrayList<Long> stackNodes = new ArrayList<Long> ();
+	HashSet<Long> stacked = new HashSet<Long> ();
+	HashSet<Long> expanded = new HashSet<Long> ();
+	ArrayList<Integer> path = new ArrayList<Integer> ();
+
+	push(stackNodes,stacked,cNodes,expanded);
+
+	while(stackNodes.size() != 0) {
+	    int length = stackNodes.size();
+	    Long topNode = stackNodes.get(length - 1);
+	    if (expanded.contains(topNode)) {
+		pop(stackNodes,stacked);
+		path.remove(path.size() - 1);
+	    } else {
+		int node = traversal.contextNodes.size();
+		traversal.contextNodes.add(topNode);
+		traversal.subtrees.add(new ArrayList<Integer> ());
+		traversal.buffers.add(null);
+		if (path.size() == 0) {
+		    traversal.topNodes.add(node);
+		    traversal.parents.add(-1);
+		} else {
+		    traversal.subtrees.get(path.get(path.size() - 1)).add(node);
+		    traversal.parents.add(path.get(path.size() - 1));
+		}
+		path.add(node);
+		push(stackNodes,stacked,cOntology,topNode,expanded);
+		expanded.add(topNode);
+	    }
+	}
+
+	int resumed = 0;
+	if (checkpointName != null) {
+	    if (mappings instanceof ChannelMappingSink && ((ChannelMappingSink) mappings).file != null) {
+		traversal.checkpointing = true;
+		resumed = resume(traversal,(ChannelMappingSink) mappings);
+	    } else
+		System.out.println("Not checkpointing " + checkpointName + ", the mappings do not go to a file");
+	}
+
+	ForkJoinPool pool = new ForkJoinPool(contextThreads);
+	try {
+	    if (resumed == 0)
+		pool.invoke(new ContextTask(traversal,-1,new ArrayList<HashMap<Long,PruneSet>> ()));
+	    else {
+		// The nodes left whose parent is written have it on the path of the first node left.
+		final ArrayList<ContextTask> tasks = new ArrayList<ContextTask> ();
+		for(int i=resumed; i < traversal.contextNodes.size(); i++) {
+		    int parent = traversal.parents.get(i);
+		    if (parent < resumed)
+			tasks.add(new ContextTask(traversal,i,new ArrayList<HashMap<Long,PruneSet>> ()));
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+			    invokeAll(tasks);
+			}
+		    });
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+	if (traversal.checkpointing)
+	    traversal.checkpoint();
+	return mappings;
+    }
+
+    /**
+       Restores a context traversal from its checkpoint and cuts the output back to the length it holds, or starts the output again if there is no checkpoint of this traversal.
+       @return Number of context nodes whose mappings are written.
+     **/
+    private int resume(ContextTraversal traversal, ChannelMappingSink output) {
+	long [] checkpoint = readCheckpoint(traversal);
+	try {
+	    try {
+		output.truncate(checkpoint[1]);
+	    } catch (IOException e) {
+		System.out.println("Ignoring checkpoint " + checkpointName + " : " + e.getMessage());
+		checkpoint = new long[3];
+		output.truncate(0);
+	    }
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write mappings : " + e.getMessage(),e);
+	}
+	int resumed = (int) checkpoint[0];
+	for(int i=0; i < resumed; i++)
+	    traversal.buffers.set(i,MappingBuffer.WRITTEN);
+	traversal.written = resumed;
+	traversal.mappingCount = checkpoint[2];
+	traversal.lastCheckpoint = System.currentTimeMillis();
+	if (resumed > 0)
+	    System.out.println("Resuming from context node " + resumed + "/" + traversal.contextNodes.size() + ", mappings : " + checkpoint[2]);
+	return resumed;
+    }
+
+    /**
+       Reads a context traversal checkpoint.
+       @return Number of context nodes written, length of the output and number of mappings in it, all zero if there is no checkpoint of this traversal.
+     **/
+    private long [] readCheckpoint(ContextTraversal traversal) {
+	long [] checkpoint = new long[3];
+	File file = new File(checkpointName);
+	if (!file.exists())
+	    return checkpoint;
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	    try {
+		long [] fingerprint = traversal.getFingerprint();
+		boolean same = in.readInt() == CHECKPOINT_MAGIC && in.readInt() == CHECKPOINT_VERSION && in.readInt() == fingerprint.length;
+		for(int i=0; same && i < fingerprint.length; i++)
+		    same = in.readLong() == fingerprint[i];
+		int written = same ? in.readInt() : -1;
+		if (written < 0 || written > traversal.contextNodes.size()) {
+		    System.out.println("Ignoring checkpoint " + checkpointName + " of another traversal");
+		    return checkpoint;
+		}
+		long length = in.readLong();
+		long mappingCount = in.readLong();
+		checkpoint[0] = written;
+		checkpoint[1] = length;
+		checkpoint[2] = mappingCount;
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    checkpoint = new long[3];
+	}
+	return checkpoint;
+    }
+
+    /**
+       Writes a context traversal checkpoint once the output is on disk, to a temporary file renamed over the previous one, so that a crash leaves one of the two whole.
+     **/
+    private void writeCheckpoint(ContextTraversal traversal) throws IOException {
+	long length = traversal.sink.flush();
+	long [] fingerprint = traversal.getFingerprint();
+	File temp = new File(checkpointName + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+	try {
+	    out.writeInt(CHECKPOINT_MAGIC);
+	    out.writeInt(CHECKPOINT_VERSION);
+	    out.writeInt(fingerprint.length);
+	    for(int i=0; i < fingerprint.length; i++)
+		out.writeLong(fingerprint[i]);
+	    out.writeInt(traversal.written);
+	    out.writeLong(length);
+	    out.writeLong(traversal.mappingCount);
+	} finally {
+	    out.close();
+	}
+	AtomicFiles.replace(temp,checkpointName);
+    }
+
+    /**
+       This function broadly takes in two nodes (say source and context), and performs a depth first (or breadth first) search on the destination dag. It adds the nodes it prunes to the marked set of the source node, a level of the prune set shared with the source nodes above it, and does not branch ahead in the sub-dag if a nodes is in the marked set. This allows to prune away large parts of the destination dag
      
     **/
-    private HashSet<Long> computeMarkedNodes(long sNode, long tsCount, long cNode, long tcCount, HashSet<Long> dNodes, Long dcCount,  HashMap<Long,HashSet<Long>> adjacencyList, ArrayList<HashSet<Long>> markedNodes,ArrayList<HashSet<Long>> moreMarkedNodes,ArrayList<Mapping> mappings, double alpha, double minThreshold, double thresHold) {
+    private void computeMarkedNodes(long sNode, long tsCount, long cNode, long tcCount, HashSet<Long> dNodes, Long dcCount,  GraphADS dOntology, PruneSet markedNodes,ArrayList<PruneSet> moreMarkedNodes,MappingSink mappings, double alpha, double minThreshold, double thresHold) {
 
-	HashSet<Long> newMarkedNodes = new HashSet<Long>();   
 	HashSet<Long> nextlevelNodes = new HashSet<Long> ();
 	HashSet<Long> levelNodes = new HashSet<Long> ();
 	HashSet<Long> temp;
 	HashSet<Long> visited = new HashSet<Long>();
+	long [] destinationCounts = null;
+	// Table of the source against itself, its last cell being the source count under the context.
+	long [] sourceMarginal = null;
+	// Best mappings so far, worst first, and the Bayes factor a node must beat to be mapped.
+	PriorityQueue<Candidate> best = topK > 0 ? new PriorityQueue<Candidate> (topK,CANDIDATE_ORDER) : null;
+	double mapThreshold = thresHold;
 
 	union(levelNodes,dNodes,visited);
 
@@ -345,19 +929,70 @@ public class MappingAlgorithm {
 		   
 		Long dcompNode = (Long) levelIterator.next();
 
-	  	if (markedContains(dcompNode,markedNodes) || newMarkedNodes.contains(dcompNode) || markedContains(dcompNode,moreMarkedNodes)) 
+	  	if (markedNodes.contains(dcompNode) || (moreMarkedNodes.size() != 0 && markedContains(dcompNode,moreMarkedNodes))) 
+		    continue;
+
+		if (sketches != null && sketches.upperBoundCooccurrence(sNode,dcompNode,cNode,sketchConfidence) < sketchCutoff) {
+		    sketchPruned.incrementAndGet();
+		    markedNodes.add(dcompNode);
+		    continue;
+		}
+
+		if (subtreePruning && searcher.getSubtreeCountUnderContext(sNode,dcompNode,cNode) == 0) {
+		    markedNodes.add(dcompNode);
 		    continue;
+		}
+
+		// Once the batched counts are fetched, exact evaluations cost less than bounds.
+		if (boundPruning && (!batchDestinationCounts || destinationCounts == null)) {
+		    if (sourceMarginal == null) {
+			long [] sourceNode = {sNode};
+			sourceMarginal = searcher.getCountsUnderContext(sourceNode,sNode,cNode);
+		    }
+		    long [] destinationNode = {dcompNode};
+		    long [] destinationMarginal = searcher.getCountsUnderContext(destinationNode,dcompNode,cNode);
+		    if (sourceMarginal != null && destinationMarginal != null) {
+			long total = sourceMarginal[0] + sourceMarginal[1] + sourceMarginal[2] + sourceMarginal[3];
+			double upperBound = scoring.getBayesFactorCIUpperBound(total,sourceMarginal[3],destinationMarginal[3],alpha);
+			if (upperBound <= minThreshold) {
+			    boundPruned.incrementAndGet();
+			    markedNodes.add(dcompNode);
+			    continue;
+			}
+			if (upperBound <= mapThreshold && scoring.getBayesFactorCILowerBound(total,sourceMarginal[3],destinationMarginal[3],alpha) > minThreshold) {
+			    boundPruned.incrementAndGet();
+			    expand(dcompNode,nextlevelNodes,dOntology,visited);
+			    continue;
+			}
+		    }
+		}
 
-		double bayesFactor = computeNodeMap(sNode,cNode,dcompNode,alpha);
+		double bayesFactor;
+		exactEvaluations.incrementAndGet();
+		if (batchDestinationCounts) {
+		    // Fetched lazily, the roots may all be pruned already.
+		    if (destinationCounts == null)
+			destinationCounts = searcher.getDestinationCountsUnderContext(sNode,cNode,destinationOntology.startIndex,destinationOntology.length);
+		    bayesFactor = computeNodeMap(destinationCounts,dcompNode,alpha);
+		} else
+		    bayesFactor = computeNodeMap(sNode,cNode,dcompNode,alpha);
 		//	System.out.println(sNode + ":" + cNode + ":" + dcompNode + ":" + bayesFactor);
 		if (bayesFactor <= minThreshold) {
-		     newMarkedNodes.add(dcompNode);
+		     markedNodes.add(dcompNode);
 		}
-		else if (bayesFactor > thresHold) {
-		    map(sNode,tsCount,dcompNode,dcCount,cNode,tcCount,bayesFactor,mappings);
-		    expand(dcompNode,nextlevelNodes,adjacencyList,visited);		      
+		else if (bayesFactor > mapThreshold) {
+		    if (best == null)
+			map(sNode,tsCount,dcompNode,dcCount,cNode,tcCount,bayesFactor,mappings);
+		    else {
+			best.add(new Candidate(dcompNode,bayesFactor));
+			if (best.size() > topK)
+			    best.poll();
+			if (best.size() == topK)
+			    mapThreshold = Math.max(thresHold,best.peek().bayesFactor);
+		    }
+		    expand(dcompNode,nextlevelNodes,dOntology,visited);		      
 		} else {
-		    expand(dcompNode,nextlevelNodes,adjacencyList,visited);    
+		    expand(dcompNode,nextlevelNodes,dOntology,visited);    
 	        }
 
 	    }
@@ -366,8 +1001,14 @@ public class MappingAlgorithm {
 	    levelNodes = nextlevelNodes;
 	    nextlevelNodes = temp;
 	}
-	return newMarkedNodes;
-	
+
+	if (best != null) {
+	    // Mapped from the best down.
+	    Candidate [] candidates = best.toArray(new Candidate[best.size()]);
+	    Arrays.sort(candidates,Collections.reverseOrder(CANDIDATE_ORDER));
+	    for(int i=0; i < candidates.length; i++)
+		map(sNode,tsCount,candidates[i].node,dcCount,cNode,tcCount,candidates[i].bayesFactor,mappings);
+	}
 	
     }
 
@@ -401,19 +1042,35 @@ public class MappingAlgorithm {
     /**
        Breadth-first search for getting all concepts in an ontology.
      **/
-    private ArrayList<Long> getAllConcepts(ArrayList<HashSet<Long>> topSort) {
+    private ArrayList<Long> getAllConcepts(GraphADS ontology) {
 	ArrayList<Long> allConcepts = new ArrayList<Long> ();
-	for (int i=0; i < topSort.size(); i++) {
-	    HashSet<Long> concepts = topSort.get(i);
-	    Iterator cIterator = concepts.iterator();
-	    while(cIterator.hasNext()) {
-		allConcepts.add((Long) cIterator.next());
-	    }
-
+	int [][] levels = ontology.levelSort();
+	for (int i=0; i < levels.length; i++) {
+	    for (int j=0; j < levels[i].length; j++)
+		allConcepts.add(ontology.concept(levels[i][j]));
 	}
 	return allConcepts;
-	
+    }
+
+    /**
+       Sink of a run : the mapping sink if one is set, otherwise a list passing the mappings on to the standard output, as they were always printed.
+     **/
+    private MappingSink getRunSink() {
+	if (sink != null)
+	    return sink;
+	return new ListMappingSink(sourceIdMap,destinationIdMap,contextIdMap,new ChannelMappingSink(System.out,sourceIdMap,destinationIdMap,contextIdMap));
+    }
 
+    /**
+       Flushes the sink of a run. Mappings kept in a list are written to a mapping object and returned.
+     **/
+    private ArrayList<Mapping> endRun(MappingSink mappings, String objectname) {
+	mappings.flush();
+	if (!(mappings instanceof ListMappingSink))
+	    return new ArrayList<Mapping> ();
+	ArrayList<Mapping> mappingList = ((ListMappingSink) mappings).getMappings();
+	writeMappingObject(objectname,mappingList);
+	return mappingList;
     }
 
     /**
@@ -425,15 +1082,11 @@ public class MappingAlgorithm {
 	//	System.out.println(this.sourceOntology.startIndex + ":" + this.sourceOntology.length + ":" + this.destinationOntology.startIndex + ":" + this.destinationOntology.length + ":" + this.contextOntology.startIndex + ":" + this.contextOntology.length);
 	double thresHold = 5.0;
 	double alpha = 2.0;
-	ArrayList<Mapping> mappings = new ArrayList<Mapping> ();
+	MappingSink mappings = getRunSink();
 	
-	ArrayList<HashSet<Long>> topSortSource = sourceOntology.ReverseLevelBasedTopologicalSort();
-	ArrayList<HashSet<Long>> topSortDestination = destinationOntology.ReverseLevelBasedTopologicalSort();
-	ArrayList<HashSet<Long>> topSortContext = contextOntology.ReverseLevelBasedTopologicalSort();
-	
-	ArrayList<Long> allConceptsSource = getAllConcepts(topSortSource);
-	ArrayList<Long> allConceptsDestination = getAllConcepts(topSortDestination);
-	ArrayList<Long> allConceptsContext = getAllConcepts(topSortContext);
+	ArrayList<Long> allConceptsSource = getAllConcepts(sourceOntology);
+	ArrayList<Long> allConceptsDestination = getAllConcepts(destinationOntology);
+	ArrayList<Long> allConceptsContext = getAllConcepts(contextOntology);
 	//	System.out.println(allConceptsSource.size() + ":" + allConceptsDestination.size() + ":" + allConceptsContext.size());
 	/*	long sourceStartIndex = sourceOntology.startIndex;
 	long sourceLength = sourceOntology.length;
@@ -461,10 +1114,199 @@ public class MappingAlgorithm {
 	     }
 
 	}
-	writeMappingObject("BruteForce"+(computeName()),mappings);
+	return endRun(mappings,"BruteForce"+(computeName()));
 
-	return mappings;
+    }
+
+    /**
+       Tiles of the parallel brute force, split in halves until one tile is left. Each tile is one context concept, a block of source concepts and all destination concepts, and fills its slot of the batch with a buffer of its mappings.
+     **/
+    class BruteForceTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	ArrayList<Long> sources;
+
+	ArrayList<Long> destinations;
+
+	ArrayList<Long> contexts;
+
+	/**
+	   First tile of the batch, and slots of the tiles of this task.
+	 **/
+	long firstTile;
+
+	int low;
+
+	int high;
+
+	MappingBuffer [] buffers;
+
+	long [] totalCounts;
+
+	double alpha;
 
+	double thresHold;
+
+	BruteForceTask(BruteForceTask batch, int low, int high) {
+	    this.sources = batch.sources;
+	    this.destinations = batch.destinations;
+	    this.contexts = batch.contexts;
+	    this.firstTile = batch.firstTile;
+	    this.buffers = batch.buffers;
+	    this.totalCounts = batch.totalCounts;
+	    this.alpha = batch.alpha;
+	    this.thresHold = batch.thresHold;
+	    this.low = low;
+	    this.high = high;
+	}
+
+	BruteForceTask() {
+	}
+
+	protected void compute() {
+	    if (high - low > 1) {
+		int middle = (low + high) >>> 1;
+		invokeAll(new BruteForceTask(this,low,middle),new BruteForceTask(this,middle,high));
+		return;
+	    }
+	    int sourceTiles = (sources.size() + sourceTile - 1) / sourceTile;
+	    long tile = firstTile + low;
+	    Long context = contexts.get((int) (tile / sourceTiles));
+	    int start = (int) (tile % sourceTiles) * sourceTile;
+	    int end = Math.min(start + sourceTile,sources.size());
+	    MappingBuffer buffer = new MappingBuffer();
+	    for (int s=start; s < end; s++) {
+		Long source = sources.get(s);
+		long [] destinationCounts = null;
+		if (batchDestinationCounts)
+		    destinationCounts = searcher.getDestinationCountsUnderContext(source,context,destinationOntology.startIndex,destinationOntology.length);
+		for (int d=0; d < destinations.size(); d++) {
+		    Long destination = destinations.get(d);
+		    double bayesFactor;
+		    if (destinationCounts != null)
+			bayesFactor = computeNodeMap(destinationCounts,destination,alpha);
+		    else
+			bayesFactor = computeNodeMap(source,context,destination,alpha);
+		    if (bayesFactor > thresHold)
+			map(source,totalCounts[0],destination,totalCounts[1],context,totalCounts[2],bayesFactor,buffer);
+		}
+	    }
+	    buffers[low] = buffer;
+	}
+    }
+
+    /**
+       Computation of context-based maps using a parallel brute-force algorithm, for runs too long for computeMappingsBruteForceCI. The triples are cut into tiles of one context concept, sourceTile source concepts and all destination concepts, run on a work-stealing pool in batches of tilesPerThread tiles per thread. The mappings of each batch are appended to the output file in the order of computeMappingsBruteForceCI, as tab-separated lines if its name ends with .tsv and as binary records otherwise, then the number of tiles done and the length of the output are saved to a checkpoint file next to it. A run started again on the same output truncates it to the checkpoint and goes on with the next tile. The statistics engine must serve concurrent calls.
+       @param outputName File the mappings are appended to.
+       @param threads Number of threads.
+       @return Number of mappings in the output.
+     **/
+    public long computeMappingsBruteForceParallel(String outputName, int threads) {
+	double thresHold = 5.0;
+	double alpha = 2.0;
+
+	BruteForceTask batch = new BruteForceTask();
+	batch.sources = getAllConcepts(sourceOntology);
+	batch.destinations = getAllConcepts(destinationOntology);
+	batch.contexts = getAllConcepts(contextOntology);
+	batch.alpha = alpha;
+	batch.thresHold = thresHold;
+	long [] totalCounts = {searcher.getTotalConceptCount(sourceOntology.startIndex,sourceOntology.length), searcher.getTotalConceptCount(destinationOntology.startIndex,destinationOntology.length), searcher.getTotalConceptCount(contextOntology.startIndex,contextOntology.length)};
+	batch.totalCounts = totalCounts;
+	int sourceTiles = (batch.sources.size() + sourceTile - 1) / sourceTile;
+	long tileCount = (long) batch.contexts.size() * sourceTiles;
+
+	String checkpointName = outputName + ".tiles";
+	long [] checkpoint = readTileCheckpoint(checkpointName,tileCount);
+	long tilesDone = checkpoint[0];
+	long mappingCount = checkpoint[2];
+	if (tilesDone > 0)
+	    System.out.println("Resuming " + outputName + " at tile " + tilesDone + " of " + tileCount);
+
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	ChannelMappingSink output = null;
+	try {
+	    // Mappings of the tiles after the checkpoint are computed again.
+	    output = new ChannelMappingSink(outputName,!outputName.endsWith(".tsv"),checkpoint[1],sourceIdMap,destinationIdMap,contextIdMap);
+	    int batchSize = threads * tilesPerThread;
+	    long time = System.currentTimeMillis();
+	    while (tilesDone < tileCount) {
+		int size = (int) Math.min(batchSize,tileCount - tilesDone);
+		batch.firstTile = tilesDone;
+		batch.low = 0;
+		batch.high = size;
+		batch.buffers = new MappingBuffer[size];
+		pool.invoke(new BruteForceTask(batch,0,size));
+		for (int i=0; i < size; i++) {
+		    batch.buffers[i].writeTo(output);
+		    mappingCount += batch.buffers[i].size;
+		}
+		long length = output.flush();
+		tilesDone += size;
+		writeTileCheckpoint(checkpointName,tileCount,tilesDone,length,mappingCount);
+		if (System.currentTimeMillis() - time > 60000 || tilesDone == tileCount) {
+		    System.out.println("Tiles : " + tilesDone + "/" + tileCount + ", mappings : " + mappingCount);
+		    time = System.currentTimeMillis();
+		}
+	    }
+	} catch (IOException e) {
+	    System.out.println("Exception : " + e.getMessage());
+	} finally {
+	    pool.shutdown();
+	    if (output != null)
+		output.close();
+	}
+	return mappingCount;
+    }
+
+    /**
+       Reads a brute force checkpoint.
+       @return Number of tiles done, length of the output and number of mappings in it, all zero if there is no checkpoint for these tiles.
+     **/
+    private long [] readTileCheckpoint(String checkpointName, long tileCount) {
+	long [] checkpoint = new long[3];
+	File file = new File(checkpointName);
+	if (!file.exists())
+	    return checkpoint;
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	    try {
+		if (in.readInt() != TILE_MAGIC || in.readInt() != TILE_VERSION || in.readLong() != tileCount || in.readInt() != sourceTile) {
+		    System.out.println("Ignoring checkpoint " + checkpointName + " of other tiles");
+		    return checkpoint;
+		}
+		checkpoint[0] = in.readLong();
+		checkpoint[1] = in.readLong();
+		checkpoint[2] = in.readLong();
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    checkpoint = new long[3];
+	}
+	return checkpoint;
+    }
+
+    /**
+       Writes a brute force checkpoint to a temporary file renamed over the previous one, so that a crash leaves one of the two whole.
+     **/
+    private void writeTileCheckpoint(String checkpointName, long tileCount, long tilesDone, long outputLength, long mappingCount) throws IOException {
+	File temp = new File(checkpointName + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+	try {
+	    out.writeInt(TILE_MAGIC);
+	    out.writeInt(TILE_VERSION);
+	    out.writeLong(tileCount);
+	    out.writeInt(sourceTile);
+	    out.writeLong(tilesDone);
+	    out.writeLong(outputLength);
+	    out.writeLong(mappingCount);
+	} finally {
+	    out.close();
+	}
+	AtomicFiles.replace(temp,checkpointName);
     }
 
     public ArrayList<Mapping> computeMappingsCI() {
@@ -472,7 +1314,7 @@ public class MappingAlgorithm {
 	double thresHold = 5.0;
 	double alpha = 2.0;
 	double minThresHold = 0.0;
-	ArrayList<Mapping> mappings = new ArrayList<Mapping> ();
+	MappingSink mappings = getRunSink();
 	    
 	ArrayList<HashSet<Long>> topSortSource = sourceOntology.ReverseLevelBasedTopologicalSort();
 	ArrayList<HashSet<Long>> topSortDestination = destinationOntology.ReverseLevelBasedTopologicalSort();
@@ -494,9 +1336,9 @@ public class MappingAlgorithm {
 
 	//	ArrayList<HashSet<Long>> markedNodes = new ArrayList<HashSet<Long>> ();
 
-	depthFirstBranchBound(sourceRoots,totalCountSource,sourceOntology.adjacencyList,contextRoots,totalCountContext,contextOntology.adjacencyList,destinationRoots,totalCountDestination,destinationOntology.adjacencyList,mappings,alpha,minThresHold,thresHold);
+	depthFirstBranchBound(sourceRoots,totalCountSource,sourceOntology,contextRoots,totalCountContext,contextOntology,destinationRoots,totalCountDestination,destinationOntology,mappings,alpha,minThresHold,thresHold);
 
-	writeMappingObject(computeName(),mappings);
+	ArrayList<Mapping> mappingList = endRun(mappings,computeName());
 	
 	//	System.out.println(contextRoots);
 	//HashSet<Long> newMarkedNodes = computeMarkedNodes((long) 5951525,totalCountSource,(long) 5792113,totalCountContext,destinationRoots,totalCountDestination,destinationOntology.adjacencyList,markedNodes,mappings,alpha,minThresHold,thresHold);
@@ -605,21 +1447,95 @@ public class MappingAlgorithm {
 		
 	*/
 
-	return mappings;	
+	return mappingList;	
     }
 
     public static void main(String [] args) {
 	long time = System.currentTimeMillis();
-	String sourceID = args[0];
-	String destinationID = args[1];
-	String contextID = args[2];
-	String indexName = args[3];
-	String sourceidMap = args[4];
-	String destinationidMap = args[5];
-	String contextidMap = args[6];
-
-	MappingAlgorithm algorithm = new MappingAlgorithm(sourceID,destinationID,contextID,indexName,sourceidMap,destinationidMap,contextidMap,true);
+	// Optional prefixes : "-bruteforce output threads" runs the parallel brute force instead, "-bound" turns on Bayes factor bounds, "-top k" keeps the k best mappings per source and context, "-out file" streams the mappings to a file, as tab-separated lines if its name ends with .tsv and as binary records otherwise, instead of printing them and writing a mapping object, "-checkpoint file" checkpoints the traversal of a run with "-out" every minute and resumes it from there, "-memoize" caches the counts of the index in memory.
+	String bruteForceOutput = null;
+	int bruteForceThreads = 0;
+	boolean bound = false;
+	int topK = 0;
+	String output = null;
+	String checkpoint = null;
+	boolean memoize = false;
+	int first = 0;
+	while (first < args.length && args[first].startsWith("-")) {
+	    if (args[first].equals("-bruteforce")) {
+		bruteForceOutput = args[first + 1];
+		bruteForceThreads = Integer.parseInt(args[first + 2]);
+		first += 3;
+	    } else if (args[first].equals("-bound")) {
+		bound = true;
+		first ++;
+	    } else if (args[first].equals("-top")) {
+		topK = Integer.parseInt(args[first + 1]);
+		first += 2;
+	    } else if (args[first].equals("-out")) {
+		output = args[first + 1];
+		first += 2;
+	    } else if (args[first].equals("-checkpoint")) {
+		checkpoint = args[first + 1];
+		first += 2;
+	    } else if (args[first].equals("-memoize")) {
+		memoize = true;
+		first ++;
+	    } else {
+		System.out.println("Unknown option " + args[first]);
+		return;
+	    }
+	}
+	String sourceID = args[first];
+	String destinationID = args[first + 1];
+	String contextID = args[first + 2];
+	String indexName = args[first + 3];
+	String sourceidMap = args[first + 4];
+	String destinationidMap = args[first + 5];
+	String contextidMap = args[first + 6];
+
+	// The parallel brute force, and an optional thread count for the context traversal, run over an index opened for concurrent reads. The index is opened once.
+	int contextThreads = args.length > first + 8 ? Integer.parseInt(args[first + 8]) : 1;
+	boolean concurrent = bruteForceOutput != null || contextThreads > 1;
+	StatisticsSearching searcher = concurrent ? new CachingStatisticsSearching(indexName,true) : new CachingStatisticsSearching(indexName);
+	if (memoize || concurrent)
+	    searcher = new MemoizingStatisticsSearching(searcher);
+	MappingAlgorithm algorithm = new MappingAlgorithm(sourceID,destinationID,contextID,searcher,sourceidMap,destinationidMap,contextidMap,true);
+	if (bruteForceOutput != null) {
+	    System.out.println("Mappings : " + algorithm.computeMappingsBruteForceParallel(bruteForceOutput,bruteForceThreads));
+	    System.out.println(System.currentTimeMillis() - time);
+	    return;
+	}
+	// An optional cutoff turns on pruning from the sketches next to the index, a zero cutoff keeping every triple.
+	if (args.length > first + 7 && Double.parseDouble(args[first + 7]) > 0)
+	    algorithm.setSketchPruning(ConceptSketches.open(indexName + ".sketch",indexName),Double.parseDouble(args[first + 7]));
+	if (contextThreads > 1)
+	    algorithm.setContextThreads(contextThreads);
+	algorithm.setBoundPruning(bound);
+	algorithm.setTopK(topK);
+	MappingSink sink;
+	if (output == null)
+	    sink = new ListMappingSink(algorithm.sourceIdMap,algorithm.destinationIdMap,algorithm.contextIdMap,new ChannelMappingSink(System.out,algorithm.sourceIdMap,algorithm.destinationIdMap,algorithm.contextIdMap));
+	else {
+	    try {
+		// A checkpointed output is kept until the checkpoint tells how much of it is written.
+		sink = new ChannelMappingSink(output,!output.endsWith(".tsv"),checkpoint == null ? 0 : -1,algorithm.sourceIdMap,algorithm.destinationIdMap,algorithm.contextIdMap);
+	    } catch (IOException e) {
+		System.out.println("Exception : " + e.getMessage());
+		return;
+	    }
+	}
+	algorithm.setMappingSink(sink);
+	if (checkpoint != null)
+	    algorithm.setCheckpoint(checkpoint,60000);
 	algorithm.computeMappingsCI();
+	sink.close();
+	if (algorithm.sketches != null)
+	    System.out.println("Sketch pruned : " + algorithm.sketchPruned.get() + ", exact : " + algorithm.exactEvaluations.get());
+	if (algorithm.boundPruning)
+	    System.out.println("Bound pruned : " + algorithm.boundPruned.get() + " exact evaluations saved, exact : " + algorithm.exactEvaluations.get());
+	if (algorithm.searcher instanceof MemoizingStatisticsSearching)
+	    ((MemoizingStatisticsSearching) algorithm.searcher).printStatistics();
 	System.out.println(System.currentTimeMillis() - time);
 
 
@@ -0,0 +1,299 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code>MappingBatch</code> class runs the (source, destination,
+ * context) triples of a manifest in one process, on a work-stealing pool.
+ * All jobs share one statistics engine, opened once for concurrent reads
+ * behind a memoizing cache, and one ontology registry. Jobs are ordered by
+ * context, the most used first, then by source and destination, so that
+ * jobs running side by side share the context graph and filters, and the
+ * counts cached under that context.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class MappingBatch {
+
+    /**
+     * Shared statistics engine and ontologies.
+     */
+    StatisticsSearching searcher;
+
+    OntologyRegistry registry;
+
+    /**
+     * Directory the mappings of each triple are written to.
+     */
+    String outputDirectory;
+
+    /**
+     * Whether mappings are written as binary records rather than
+     * tab-separated lines.
+     */
+    boolean binary = false;
+
+    /**
+     * Options passed to each mapping algorithm.
+     */
+    boolean boundPruning = false;
+
+    int topK = 0;
+
+    /**
+     * Whether each job checkpoints its traversal next to its output, so that
+     * a batch run again goes on from where its jobs stopped.
+     */
+    boolean checkpoint = false;
+
+    /**
+     * Number of jobs done and failed.
+     */
+    AtomicInteger done = new AtomicInteger();
+
+    AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * A triple of the manifest.
+     */
+    public static class Job {
+
+	String sourceID;
+
+	String destinationID;
+
+	String contextID;
+
+	Job(String sourceID, String destinationID, String contextID) {
+	    this.sourceID = sourceID;
+	    this.destinationID = destinationID;
+	    this.contextID = contextID;
+	}
+
+	String getName() {
+	    return sourceID + "_" + destinationID + "_" + contextID;
+	}
+    }
+
+    /**
+     * Constructor for a batch over an index, opened once for all jobs.
+     * @param indexName Name of the index.
+     * @param registry Registry of the ontologies.
+     * @param outputDirectory Directory the mappings are written to.
+     */
+    public MappingBatch(String indexName, OntologyRegistry registry, String outputDirectory) {
+	this.searcher = new MemoizingStatisticsSearching(new CachingStatisticsSearching(indexName,true));
+	this.registry = registry;
+	this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Reads a manifest, one triple of ontology identifiers per line,
+     * separated by white space. Empty lines and lines starting with # are
+     * skipped, and so are repeated triples.
+     * @param manifest Name of the manifest.
+     * @return Triples, in the order of the manifest.
+     */
+    public static ArrayList<Job> readManifest(String manifest) throws IOException {
+	ArrayList<Job> jobs = new ArrayList<Job> ();
+	HashSet<String> names = new HashSet<String> ();
+	BufferedReader reader = new BufferedReader(new FileReader(manifest));
+	try {
+	    String line;
+	    int number = 0;
+	    while ((line = reader.readLine()) != null) {
+		number ++;
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		    continue;
+		String [] ids = line.split("\\s+");
+		if (ids.length != 3) {
+		    System.out.println("Skipping line " + number + " of " + manifest + " : " + line);
+		    continue;
+		}
+		Job job = new Job(ids[0],ids[1],ids[2]);
+		if (names.add(job.getName()))
+		    jobs.add(job);
+	    }
+	} finally {
+	    reader.close();
+	}
+	return jobs;
+    }
+
+    /**
+     * Orders jobs for reuse : by context, the contexts with the most jobs
+     * first, then by source and destination.
+     * @param jobs Triples.
+     * @return null.
+     */
+    public static void schedule(ArrayList<Job> jobs) {
+	final HashMap<String,Integer> contextJobs = new HashMap<String,Integer> ();
+	for(int i=0; i < jobs.size(); i++) {
+	    Integer count = contextJobs.get(jobs.get(i).contextID);
+	    contextJobs.put(jobs.get(i).contextID,count == null ? 1 : count + 1);
+	}
+	Collections.sort(jobs,new Comparator<Job> () {
+		public int compare(Job first, Job second) {
+		    int order = contextJobs.get(second.contextID) - contextJobs.get(first.contextID);
+		    if (order == 0)
+			order = first.contextID.compareTo(second.contextID);
+		    if (order == 0)
+			order = first.sourceID.compareTo(second.sourceID);
+		    if (order == 0)
+			order = first.destinationID.compareTo(second.destinationID);
+		    return order;
+		}
+	    });
+    }
+
+    /**
+     * Runs a job, writing its mappings to its own file. A failed job is
+     * reported and does not stop the others.
+     * @param job Triple.
+     * @return null.
+     */
+    void run(Job job) {
+	long time = System.currentTimeMillis();
+	ChannelMappingSink sink = null;
+	try {
+	    MappingAlgorithm algorithm = new MappingAlgorithm(job.sourceID,job.destinationID,job.contextID,searcher,registry);
+	    algorithm.setBoundPruning(boundPruning);
+	    algorithm.setTopK(topK);
+	    String fileName = new File(outputDirectory,job.getName() + (binary ? ".bin" : ".tsv")).getPath();
+	    sink = new ChannelMappingSink(fileName,binary,checkpoint ? -1 : 0,algorithm.sourceIdMap,algorithm.destinationIdMap,algorithm.contextIdMap);
+	    algorithm.setMappingSink(sink);
+	    if (checkpoint)
+		algorithm.setCheckpoint(fileName + ".ckpt",60000);
+	    algorithm.computeMappingsCI();
+	    sink.close();
+	    sink = null;
+	    System.out.println("Done " + job.getName() + " (" + done.incrementAndGet() + ") in " + (System.currentTimeMillis() - time) + " ms, exact : " + algorithm.exactEvaluations.get());
+	} catch (Exception e) {
+	    failed.incrementAndGet();
+	    System.out.println("Failed " + job.getName() + " : " + e);
+	    if (sink != null)
+		sink.close();
+	}
+    }
+
+    /**
+     * Runs jobs on a work-stealing pool, in the given order.
+     * @param jobs Triples.
+     * @param threads Number of threads.
+     * @return Number of failed jobs.
+     */
+    public int runAll(ArrayList<Job> jobs, int threads) {
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction> ();
+	try {
+	    for(int i=0; i < jobs.size(); i++) {
+		final Job job = jobs.get(i);
+		RecursiveAction task = new RecursiveAction() {
+			protected void compute() {
+			    run(job);
+			}
+		    };
+		tasks.add(task);
+		pool.execute(task);
+	    }
+	    for(int i=0; i < tasks.size(); i++)
+		tasks.get(i).join();
+	} finally {
+	    pool.shutdown();
+	}
+	return failed.get();
+    }
+
+    /**
+     * Prints the reuse of the shared ontologies and counts.
+     * @return null.
+     */
+    public void printStatistics() {
+	registry.printStatistics();
+	if (searcher instanceof MemoizingStatisticsSearching)
+	    ((MemoizingStatisticsSearching) searcher).printStatistics();
+    }
+
+    public static void main(String [] args) {
+	long time = System.currentTimeMillis();
+	// Optional prefixes : "-threads n", "-budget MB" of the registry, "-binary" for binary records, "-bound" and "-top k" as for MappingAlgorithm, "-checkpoint" to checkpoint and resume each job.
+	int threads = Runtime.getRuntime().availableProcessors();
+	long budget = OntologyRegistry.DEFAULT_BUDGET;
+	boolean binary = false;
+	boolean bound = false;
+	int topK = 0;
+	boolean checkpoint = false;
+	int first = 0;
+	while (first < args.length && args[first].startsWith("-")) {
+	    if (args[first].equals("-threads")) {
+		threads = Integer.parseInt(args[first + 1]);
+		first += 2;
+	    } else if (args[first].equals("-budget")) {
+		budget = Long.parseLong(args[first + 1]) << 20;
+		first += 2;
+	    } else if (args[first].equals("-binary")) {
+		binary = true;
+		first ++;
+	    } else if (args[first].equals("-bound")) {
+		bound = true;
+		first ++;
+	    } else if (args[first].equals("-top")) {
+		topK = Integer.parseInt(args[first + 1]);
+		first += 2;
+	    } else if (args[first].equals("-checkpoint")) {
+		checkpoint = true;
+		first ++;
+	    } else {
+		System.out.println("Unknown option " + args[first]);
+		return;
+	    }
+	}
+	if (args.length - first < 3) {
+	    System.out.println("Usage : MappingBatch [-threads n] [-budget MB] [-binary] [-bound] [-top k] [-checkpoint] indexName manifest outputDirectory");
+	    return;
+	}
+	String indexName = args[first];
+	String manifest = args[first + 1];
+	String outputDirectory = args[first + 2];
+
+	ArrayList<Job> jobs;
+	try {
+	    jobs = readManifest(manifest);
+	} catch (IOException e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return;
+	}
+	new File(outputDirectory).mkdirs();
+	schedule(jobs);
+
+	MappingBatch batch = new MappingBatch(indexName,new OntologyRegistry(budget),outputDirectory);
+	batch.binary = binary;
+	batch.boundPruning = bound;
+	batch.topK = topK;
+	batch.checkpoint = checkpoint;
+	int failures = batch.runAll(jobs,threads);
+	batch.printStatistics();
+	System.out.println("Jobs : " + jobs.size() + ", failed : " + failures + ", " + (System.currentTimeMillis() - time) + " ms");
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+/**
+ * The <code>MappingSink</code> interface receives the mappings of a run as
+ * they are found, so that they can be streamed to a file instead of being
+ * held until the end of the run.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public interface MappingSink {
+
+    /**
+     * Method to write a mapping.
+     * @param sourceConcept Source concept.
+     * @param sourceInfo Information content of the source concept.
+     * @param destinationConcept Destination concept.
+     * @param destinationInfo Information content of the destination concept.
+     * @param contextConcept Context concept.
+     * @param contextInfo Information content of the context concept.
+     * @param bayesFactor Bayes factor of the mapping.
+     * @return null.
+     */
+    public void write(long sourceConcept, double sourceInfo, long destinationConcept, double destinationInfo, long contextConcept, double contextInfo, double bayesFactor);
+
+    /**
+     * Method to write out the buffered mappings.
+     * @return Number of bytes written out so far, the length of the output
+     * up to the last mapping.
+     */
+    public long flush();
+
+    /**
+     * Method to flush and release the output.
+     * @return null.
+     */
+    public void close();
+
+}
@@ -0,0 +1,319 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  The <code>MemoizingStatisticsSearching</code> class puts a size-bounded, least-recently-used cache in front of another statistics engine, so that repeated (parents, child, context) count tables, batched destination tables of a (source, context) pair and concept counts cost a hash lookup instead of index searches. The caches are synchronized, so the wrapper is as thread-safe as the engine behind it.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class MemoizingStatisticsSearching implements StatisticsSearching {
+
+    /**
+     * Default number of entries kept in each cache.
+     */
+    public static final int DEFAULT_CAPACITY = 1000000;
+
+    /**
+     * Default number of counts kept in the destination table cache, 128 MB.
+     */
+    public static final long DEFAULT_TABLE_BUDGET = 1L << 24;
+
+    /**
+     * Statistics engine answering the cache misses.
+     */
+    StatisticsSearching searcher;
+
+    /**
+     * Maximum number of entries in each cache.
+     */
+    int capacity;
+
+    /**
+     * Cached count tables keyed by (parents, child, context).
+     */
+    LinkedHashMap<CountsKey,long []> countsCache;
+
+    /**
+     * Cached concept counts keyed by concept identifier.
+     */
+    LinkedHashMap<Long,Long> conceptCache;
+
+    /**
+     * Cached destination tables keyed by (source, context, destination
+     * ontology), bounded by their total number of counts rather than by
+     * entries, as each is four counts per destination concept.
+     */
+    LinkedHashMap<CountsKey,long []> tableCache;
+
+    long tableBudget;
+
+    long tableCounts = 0;
+
+    /**
+     * Hit and miss statistics of the caches.
+     */
+    long countsHits, countsMisses, conceptHits, conceptMisses, tableHits, tableMisses;
+
+    /**
+     * Constructor initializes the caches with the default capacity.
+     */
+    public MemoizingStatisticsSearching(StatisticsSearching searcher) {
+	this(searcher,DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor initializes the caches with a given capacity.
+     * @param searcher Statistics engine answering the cache misses.
+     * @param capacity Maximum number of entries in each cache.
+     */
+    public MemoizingStatisticsSearching(StatisticsSearching searcher, int capacity) {
+	this.searcher = searcher;
+	this.capacity = capacity;
+	this.countsCache = new BoundedCache<CountsKey,long []>(capacity);
+	this.conceptCache = new BoundedCache<Long,Long>(capacity);
+	this.tableCache = new LinkedHashMap<CountsKey,long []>(16,0.75f,true);
+	this.tableBudget = DEFAULT_TABLE_BUDGET;
+    }
+
+    /**
+     * Sets the number of counts kept in the destination table cache, zero
+     * to leave the tables uncached.
+     * @param tableBudget Maximum number of counts over all cached tables.
+     */
+    public synchronized void setTableBudget(long tableBudget) {
+	this.tableBudget = tableBudget;
+	evictTables();
+    }
+
+    /**
+     * Method to get counts for a concept and the parents under a given context.
+     * @param parentConcept Array of parent concepts in a given ontology.
+     * @param childConcept Child concept for a given ontology.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Long-array representing the possible counts.
+     */
+    public long [] getCountsUnderContext(long [] parentConcept, long childConcept, long contextConcept) {
+	CountsKey key = new CountsKey(parentConcept,childConcept,contextConcept);
+	long [] Count;
+	synchronized (this) {
+	    Count = countsCache.get(key);
+	    if (Count != null) {
+		countsHits ++;
+		return Count.clone();
+	    }
+	    countsMisses ++;
+	}
+	Count = searcher.getCountsUnderContext(parentConcept,childConcept,contextConcept);
+	if (Count == null)
+	    return null;
+	synchronized (this) {
+	    countsCache.put(key,Count.clone());
+	}
+	return Count;
+    }
+
+    /**
+     * Method to get the counts of a source concept against every concept of
+     * a destination ontology under a given context. The tables are as large
+     * as the destination ontology, so their cache is bounded by counts.
+     * @param sourceConcept Source concept acting as the single parent.
+     * @param contextConcept Context concept for a given ontology.
+     * @param startIndex Starting concept identifier of the destination ontology.
+     * @param length Total number of concepts in the destination ontology.
+     * @return Long-array with four counts per destination concept.
+     */
+    public long [] getDestinationCountsUnderContext(long sourceConcept, long contextConcept, long startIndex, long length) {
+	long [] destination = {startIndex,length};
+	CountsKey key = new CountsKey(destination,sourceConcept,contextConcept);
+	long [] Counts;
+	synchronized (this) {
+	    Counts = tableCache.get(key);
+	    if (Counts != null) {
+		tableHits ++;
+		return Counts.clone();
+	    }
+	    tableMisses ++;
+	}
+	Counts = searcher.getDestinationCountsUnderContext(sourceConcept,contextConcept,startIndex,length);
+	if (Counts == null || Counts.length > tableBudget)
+	    return Counts;
+	synchronized (this) {
+	    long [] previous = tableCache.put(key,Counts.clone());
+	    if (previous != null)
+		tableCounts -= previous.length;
+	    tableCounts += Counts.length;
+	    evictTables();
+	}
+	return Counts;
+    }
+
+    /**
+     * Evicts the least recently used tables until the cache fits its budget.
+     * @return null.
+     */
+    private void evictTables() {
+	Iterator<long []> tIterator = tableCache.values().iterator();
+	while (tableCounts > tableBudget && tIterator.hasNext()) {
+	    tableCounts -= tIterator.next().length;
+	    tIterator.remove();
+	}
+    }
+
+    /**
+     * Method to get the number of elements annotated with a source concept
+     * and with a concept in the subtree of a destination concept, under a 
+     * given context.
+     * @param sourceConcept Source concept for a given ontology.
+     * @param subtreeConcept Root of the destination subtree.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Count for the subtree, or -1 if the index has no propagated hierarchy.
+     */
+    public long getSubtreeCountUnderContext(long sourceConcept, long subtreeConcept, long contextConcept) {
+	return searcher.getSubtreeCountUnderContext(sourceConcept,subtreeConcept,contextConcept);
+    }
+
+    /**
+     * Getting total concept count in the data-structure for a given ontology.
+     * Only called once per ontology, so it is not cached.
+     * @param concept Starting concept identifier for a given ontology.
+     * @param length Total number of concepts in the ontology.
+     * @return Total concept count.
+     */
+    public long getTotalConceptCount(long concept, long length) {
+	return searcher.getTotalConceptCount(concept,length);
+    }
+
+    /**
+     * Getting total concept count in the data-structure for a given concept.
+     * @param concept Concept identifier for a given ontology.
+     * @return Total count for the given concept.
+     */
+    public long getConceptCount(long concept) {
+	Long count;
+	synchronized (this) {
+	    count = conceptCache.get(concept);
+	    if (count != null) {
+		conceptHits ++;
+		return count;
+	    }
+	    conceptMisses ++;
+	}
+	long result = searcher.getConceptCount(concept);
+	if (result < 0)
+	    return result;
+	synchronized (this) {
+	    conceptCache.put(concept,result);
+	}
+	return result;
+    }
+
+    /**
+     * Empties the caches and resets the statistics.
+     */
+    public synchronized void clear() {
+	countsCache.clear();
+	conceptCache.clear();
+	tableCache.clear();
+	tableCounts = 0;
+	countsHits = countsMisses = conceptHits = conceptMisses = tableHits = tableMisses = 0;
+    }
+
+    /**
+     * Hit rate of the count table cache.
+     * @return Fraction of count table lookups answered from the cache.
+     */
+    public synchronized double getCountsHitRate() {
+	long total = countsHits + countsMisses;
+	return total == 0 ? 0.0 : (double) countsHits / total;
+    }
+
+    /**
+     * Hit rate of the concept count cache.
+     * @return Fraction of concept count lookups answered from the cache.
+     */
+    public synchronized double getConceptHitRate() {
+	long total = conceptHits + conceptMisses;
+	return total == 0 ? 0.0 : (double) conceptHits / total;
+    }
+
+    /**
+     * Hit rate of the destination table cache.
+     * @return Fraction of destination table lookups answered from the cache.
+     */
+    public synchronized double getTableHitRate() {
+	long total = tableHits + tableMisses;
+	return total == 0 ? 0.0 : (double) tableHits / total;
+    }
+
+    /**
+     * Prints the hit and miss statistics of the caches.
+     */
+    public synchronized void printStatistics() {
+	System.out.println("Counts cache : " + countsHits + " hits, " + countsMisses + " misses, " + countsCache.size() + "/" + capacity + " entries");
+	System.out.println("Concept cache : " + conceptHits + " hits, " + conceptMisses + " misses, " + conceptCache.size() + "/" + capacity + " entries");
+	System.out.println("Table cache : " + tableHits + " hits, " + tableMisses + " misses, " + tableCache.size() + " tables, " + tableCounts + "/" + tableBudget + " counts");
+    }
+
+    /**
+     * Least-recently-used map evicting its eldest entry above a capacity.
+     */
+    static class BoundedCache<K,V> extends LinkedHashMap<K,V> {
+
+	private static final long serialVersionUID = 1L;
+
+	int capacity;
+
+	BoundedCache(int capacity) {
+	    super(16,0.75f,true);
+	    this.capacity = capacity;
+	}
+
+	protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+	    return size() > capacity;
+	}
+    }
+
+    /**
+     * Cache key for a (parents, child, context) triple, and for a (source,
+     * context) pair over the destination ontology given as parents.
+     */
+    static class CountsKey {
+
+	long [] parentConcept;
+
+	long childConcept;
+
+	long contextConcept;
+
+	int hash;
+
+	CountsKey(long [] parentConcept, long childConcept, long contextConcept) {
+	    this.parentConcept = parentConcept.clone();
+	    this.childConcept = childConcept;
+	    this.contextConcept = contextConcept;
+	    this.hash = 31 * (31 * Arrays.hashCode(parentConcept) + (int) (childConcept ^ (childConcept >>> 32))) + (int) (contextConcept ^ (contextConcept >>> 32));
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof CountsKey))
+		return false;
+	    CountsKey key = (CountsKey) o;
+	    return childConcept == key.childConcept && contextConcept == key.contextConcept && Arrays.equals(parentConcept,key.parentConcept);
+	}
+    }
+
+}
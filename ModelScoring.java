@@ -172,6 +172,68 @@ public class ModelScoring {
 
 	}
 
+    /**
+     * Method to compute the CI bayes factor of a source and destination
+     * concept under a context from its cells, in the order of
+     * <code>getCountsUnderContext</code>.
+     * @param total Number of elements of the context.
+     * @param parentCount Number of them with the source concept.
+     * @param childCount Number of them with the destination concept.
+     * @param both Number of them with both.
+     * @param alpha Smoothing co-efficient.
+     * @return Bayes Factor
+     */
+    private double getBayesFactorCI(long total, long parentCount, long childCount, long both, double alpha) {
+	long [] Counts = {total - parentCount - childCount + both, childCount - both, parentCount - both, both};
+	return getBayesFactorCI(Counts,alpha);
+    }
+
+    /**
+     * Method to bound the CI bayes factor of a source and destination concept
+     * from their marginal counts under a context. With the marginals fixed,
+     * the independence model is fixed and the dependence model is a sum of
+     * log gammas of the cells, convex in the number of elements with both
+     * concepts. The bayes factor is thus at most its largest value at the
+     * two ends of the feasible range.
+     * @param total Number of elements of the context.
+     * @param parentCount Number of them with the source concept.
+     * @param childCount Number of them with the destination concept.
+     * @param alpha Smoothing co-efficient.
+     * @return Upper bound of the bayes factor.
+     */
+    public double getBayesFactorCIUpperBound(long total, long parentCount, long childCount, double alpha) {
+	long low = Math.max(0,parentCount + childCount - total);
+	long high = Math.min(parentCount,childCount);
+	double bound = Math.max(getBayesFactorCI(total,parentCount,childCount,low,alpha),getBayesFactorCI(total,parentCount,childCount,high,alpha));
+	// Slack for the rounding of the log gamma approximation.
+	return bound + 1e-9 * (1.0 + Math.abs(bound));
+    }
+
+    /**
+     * Method to bound the CI bayes factor of a source and destination concept
+     * from below, by searching the minimum of the convex dependence model
+     * over the feasible range of elements with both concepts.
+     * @param total Number of elements of the context.
+     * @param parentCount Number of them with the source concept.
+     * @param childCount Number of them with the destination concept.
+     * @param alpha Smoothing co-efficient.
+     * @return Lower bound of the bayes factor.
+     */
+    public double getBayesFactorCILowerBound(long total, long parentCount, long childCount, double alpha) {
+	long low = Math.max(0,parentCount + childCount - total);
+	long high = Math.min(parentCount,childCount);
+	// First point from which the bayes factor stops decreasing.
+	while (low < high) {
+	    long middle = low + (high - low) / 2;
+	    if (getBayesFactorCI(total,parentCount,childCount,middle + 1,alpha) >= getBayesFactorCI(total,parentCount,childCount,middle,alpha))
+		high = middle;
+	    else
+		low = middle + 1;
+	}
+	double bound = getBayesFactorCI(total,parentCount,childCount,low,alpha);
+	return bound - 1e-9 * (1.0 + Math.abs(bound));
+    }
+
   public double getBDeuScore(long [] Counts, double ess) {
 	int instances = Counts.length;
 	int start = 0;
@@ -0,0 +1,275 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.io.File;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The <code>OntologyRegistry</code> class holds the ontology graphs and id maps of a process, keyed by ontology identifier. They are loaded on first use and shared by all mapping jobs, and the least recently used ones are dropped once their estimated heap use exceeds a memory budget. A dropped ontology stays alive for the jobs still holding it, and is loaded again by the next job asking for it.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class OntologyRegistry {
+
+    /**
+     * Default file names of graphs and id maps, formatted with the ontology
+     * identifier.
+     */
+    static final String GRAPH_PATH = "serialObjectsOBS_Roots/%s.obj";
+
+    static final String ID_MAP_PATH = "idMaps/%sidMaps.obj";
+
+    /**
+     * Default memory budget in bytes.
+     */
+    static final long DEFAULT_BUDGET = 1L << 30;
+
+    /**
+     * Registry shared by the process.
+     */
+    private static OntologyRegistry shared;
+
+    /**
+     * File names of graphs and id maps, formatted with the ontology
+     * identifier.
+     */
+    String graphPath;
+
+    String idMapPath;
+
+    /**
+     * Estimated heap bytes the registry may hold.
+     */
+    long memoryBudget;
+
+    /**
+     * Estimated heap bytes held.
+     */
+    long memoryUsed = 0;
+
+    /**
+     * Number of loads and of requests served without loading.
+     */
+    long loads = 0;
+
+    long hits = 0;
+
+    /**
+     * Loaded graphs and id maps, in access order.
+     */
+    LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry> (16,0.75f,true);
+
+    /**
+     * Graph or id map of an ontology. Jobs asking for an entry being loaded
+     * wait for the load instead of loading it again.
+     */
+    static class Entry {
+
+	/**
+	 * Released once the entry is loaded or failed to load.
+	 */
+	final CountDownLatch loaded = new CountDownLatch(1);
+
+	Object value;
+
+	/**
+	 * Error of a failed load, thrown to the jobs waiting for it.
+	 */
+	RuntimeException failure;
+
+	long bytes;
+    }
+
+    /**
+     * Constructor for a registry reading the files at the given paths.
+     * @param graphPath File name of the graphs, formatted with the ontology identifier.
+     * @param idMapPath File name of the id maps, formatted with the ontology identifier.
+     * @param memoryBudget Estimated heap bytes the registry may hold.
+     */
+    public OntologyRegistry(String graphPath, String idMapPath, long memoryBudget) {
+	this.graphPath = graphPath;
+	this.idMapPath = idMapPath;
+	this.memoryBudget = memoryBudget;
+    }
+
+    public OntologyRegistry(long memoryBudget) {
+	this(GRAPH_PATH,ID_MAP_PATH,memoryBudget);
+    }
+
+    /**
+     * Gets the registry shared by the process, created with the default
+     * paths and budget.
+     * @return Shared registry.
+     */
+    public static synchronized OntologyRegistry getShared() {
+	if (shared == null)
+	    shared = new OntologyRegistry(DEFAULT_BUDGET);
+	return shared;
+    }
+
+    /**
+     * Gets the graph of an ontology, loading it if needed : from the graph
+     * file if it exists, from the database otherwise.
+     * @param ontologyID Ontology identifier.
+     * @return Ontology graph.
+     */
+    public GraphADS getGraph(String ontologyID) {
+	return (GraphADS) get("graph:" + ontologyID, ontologyID);
+    }
+
+    /**
+     * Gets the id map of an ontology, loading it if needed.
+     * @param ontologyID Ontology identifier.
+     * @return Id map.
+     */
+    public IdMaps getIdMaps(String ontologyID) {
+	return (IdMaps) get("idmap:" + ontologyID, ontologyID);
+    }
+
+    /**
+     * Gets an entry, loading it if needed. The entry is published before it
+     * is loaded, so that other jobs asking for it wait for the load. A failed
+     * load is removed, so that the next job asking for it loads it again.
+     * @param key Key of the entry.
+     * @param ontologyID Ontology identifier.
+     * @return Graph or id map.
+     */
+    private Object get(String key, String ontologyID) {
+	Entry entry;
+	boolean load = false;
+	synchronized (this) {
+	    entry = entries.get(key);
+	    if (entry == null) {
+		entry = new Entry();
+		entries.put(key,entry);
+		load = true;
+		loads ++;
+	    } else
+		hits ++;
+	}
+	if (load) {
+	    try {
+		if (key.startsWith("graph:"))
+		    entry.value = loadGraph(ontologyID);
+		else
+		    entry.value = loadIdMaps(ontologyID);
+		if (entry.value == null)
+		    throw new RuntimeException("Cannot load " + key);
+		entry.bytes = estimateBytes(entry.value);
+	    } catch (RuntimeException e) {
+		entry.failure = e;
+		throw e;
+	    } finally {
+		if (entry.value == null && entry.failure == null)
+		    entry.failure = new RuntimeException("Cannot load " + key);
+		synchronized (this) {
+		    // The entry may have been evicted while it was loading.
+		    if (entries.get(key) == entry) {
+			if (entry.failure != null)
+			    entries.remove(key);
+			else
+			    memoryUsed += entry.bytes;
+		    }
+		    evict(entry);
+		}
+		entry.loaded.countDown();
+	    }
+	    return entry.value;
+	}
+	try {
+	    entry.loaded.await();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Interrupted loading " + key,e);
+	}
+	if (entry.failure != null)
+	    throw new RuntimeException("Cannot load " + key + " : " + entry.failure.getMessage(),entry.failure);
+	return entry.value;
+    }
+
+    /**
+     * Drops the least recently used entries until the budget is met.
+     * @param keep Entry not to drop.
+     * @return null.
+     */
+    private synchronized void evict(Entry keep) {
+	Iterator iterator = entries.values().iterator();
+	while (memoryUsed > memoryBudget && iterator.hasNext()) {
+	    Entry entry = (Entry) iterator.next();
+	    if (entry == keep || entry.loaded.getCount() > 0)
+		continue;
+	    memoryUsed -= entry.bytes;
+	    iterator.remove();
+	}
+    }
+
+    /**
+     * Loads the graph of an ontology.
+     * @param ontologyID Ontology identifier.
+     * @return Ontology graph.
+     */
+    private GraphADS loadGraph(String ontologyID) {
+	String fileName = String.format(graphPath, ontologyID);
+	if ((new File(fileName)).exists())
+	    return (new SerializableGraphADS()).restoreSerializableObject(fileName);
+	return new GraphADS(ontologyID);
+    }
+
+    /**
+     * Loads the id map of an ontology.
+     * @param ontologyID Ontology identifier.
+     * @return Id map.
+     */
+    private IdMaps loadIdMaps(String ontologyID) {
+	IdMaps idMaps = new IdMaps(String.format(idMapPath, ontologyID));
+	// Opened now, so that its size is known.
+	idMaps.getName(Long.valueOf(-1));
+	return idMaps;
+    }
+
+    /**
+     * Estimates the heap bytes of a graph or an id map. Memory-mapped
+     * arrays are not on the heap.
+     * @param value Graph or id map.
+     * @return Estimated bytes.
+     */
+    private long estimateBytes(Object value) {
+	if (value instanceof GraphADS) {
+	    GraphADS graph = (GraphADS) value;
+	    long bytes = graph.roots == null ? 0 : 64L * graph.roots.size();
+	    if (graph.children != null && !graph.children.isDirect())
+		bytes += 8L * (graph.length + 1) + 8L * graph.children.limit();
+	    return bytes;
+	}
+	if (value instanceof IdMaps) {
+	    IdMaps idMaps = (IdMaps) value;
+	    if (idMaps.idMaps == null)
+		return 0;
+	    long bytes = 0;
+	    Iterator names = idMaps.idMaps.values().iterator();
+	    while(names.hasNext())
+		bytes += 96 + 2 * ((String) names.next()).length();
+	    return bytes;
+	}
+	return 0;
+    }
+
+    /**
+     * Prints the number of loads, of shared requests and the estimated
+     * memory held.
+     * @return null.
+     */
+    public synchronized void printStatistics() {
+	System.out.println("Ontology loads : " + loads + ", shared : " + hits + ", held : " + (memoryUsed >> 20) + " MB in " + entries.size() + " entries");
+    }
+
+}
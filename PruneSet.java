@@ -0,0 +1,147 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.HashSet;
+
+/**
+ * The <code>PruneSet</code> class holds the pruned concepts of an ontology
+ * as a bitset indexed by concept offset from <code>startIndex</code>. It
+ * follows a depth first traversal : <code>push</code> opens a level when the
+ * traversal goes down, and <code>pop</code> clears the concepts added since,
+ * from an undo log, when it comes back up. Membership costs one bit test
+ * whatever the depth of the traversal.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class PruneSet {
+
+    /**
+     * First concept identifier and number of concepts.
+     */
+    long startIndex;
+
+    int length;
+
+    /**
+     * Bits of the pruned concept offsets.
+     */
+    long [] words;
+
+    /**
+     * Offsets added, in order.
+     */
+    int [] added;
+
+    int addedCount = 0;
+
+    /**
+     * Number of offsets added before each open level.
+     */
+    int [] levels;
+
+    int levelCount = 0;
+
+    /**
+     * Constructor initializes an empty set over the concepts of an ontology.
+     * @param startIndex First concept identifier.
+     * @param length Number of concepts.
+     */
+    public PruneSet(long startIndex, long length) {
+	this.startIndex = startIndex;
+	this.length = (int) length;
+	this.words = new long[(this.length + 63) >>> 6];
+	this.added = new int[16];
+	this.levels = new int[16];
+    }
+
+    /**
+     * Tests if a concept is pruned. Concepts outside the ontology never are.
+     * @param concept Concept identifier.
+     * @return True if pruned.
+     */
+    public boolean contains(long concept) {
+	long offset = concept - startIndex;
+	if (offset < 0 || offset >= length)
+	    return false;
+	return (words[(int) (offset >>> 6)] & (1L << offset)) != 0;
+    }
+
+    /**
+     * Tests if all the given concepts are pruned.
+     * @param concepts Concept identifiers.
+     * @return True if all are pruned.
+     */
+    public boolean containsAll(HashSet<Long> concepts) {
+	Iterator cIterator = concepts.iterator();
+	while(cIterator.hasNext()) {
+	    if (!contains((Long) cIterator.next()))
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Prunes a concept in the current level.
+     * @param concept Concept identifier.
+     * @return True if it was not pruned yet.
+     */
+    public boolean add(long concept) {
+	long offset = concept - startIndex;
+	if (offset < 0 || offset >= length)
+	    throw new IllegalArgumentException("Concept " + concept + " out of " + startIndex + ":" + length);
+	int word = (int) (offset >>> 6);
+	long bit = 1L << offset;
+	if ((words[word] & bit) != 0)
+	    return false;
+	words[word] |= bit;
+	if (addedCount == added.length)
+	    added = Arrays.copyOf(added,2 * addedCount);
+	added[addedCount++] = (int) offset;
+	return true;
+    }
+
+    /**
+     * Opens a level.
+     * @return null.
+     */
+    public void push() {
+	if (levelCount == levels.length)
+	    levels = Arrays.copyOf(levels,2 * levelCount);
+	levels[levelCount++] = addedCount;
+    }
+
+    /**
+     * Closes the last level, clearing the concepts added in it.
+     * @return null.
+     */
+    public void pop() {
+	int start = levels[--levelCount];
+	for(int i=start; i < addedCount; i++)
+	    words[added[i] >>> 6] &= ~(1L << added[i]);
+	addedCount = start;
+    }
+
+    /**
+     * Number of pruned concepts.
+     * @return Number of concepts added in the open levels.
+     */
+    public int size() {
+	return addedCount;
+    }
+
+    /**
+     * Tests if no concept is pruned.
+     * @return True if empty.
+     */
+    public boolean isEmpty() {
+	return addedCount == 0;
+    }
+
+}
@@ -17,6 +17,8 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 /**
  * The <code>Resource</code> abstracts NCBO database and tables for efficient 
@@ -42,6 +44,44 @@ public class Resource {
      */
     public long limit = 10000;
 
+    /**
+     * Characterizes the number of rows fetched by one keyset page of a 
+     * streaming read.
+     */
+    public long pageRows = 1000000;
+
+    /**
+     * Prepared statements of the streaming reads, by query.
+     */
+    HashMap<String,PreparedStatement> preparedStatements = new HashMap<String,PreparedStatement> ();
+
+    /**
+     * Callback receiving the rows of a streaming read, two long columns per
+     * row, without any allocation per row.
+     */
+    public interface RowHandler {
+
+	/**
+	 * Handles one row.
+	 * @param key Value of the first column, e.g. the element id.
+	 * @param value Value of the second column, e.g. the concept id.
+	 */
+	void handleRow(long key, long value);
+    }
+
+    /**
+     * Callback of a streaming read also told when each page of the read is
+     * over, after its result set is closed, so that slow work such as a
+     * commit does not hold the streaming cursor open.
+     */
+    public interface PageHandler extends RowHandler {
+
+	/**
+	 * Handles the end of a page.
+	 */
+	void endPage();
+    }
+
     /**
      * Constructor initializes a given resource with the server metrics and the
      * database to be abstracted.
@@ -56,6 +96,12 @@ public class Resource {
 	}
     }
     
+    /**
+     * Constructor for resources not backed by a database connection.
+     */
+    protected Resource () {
+    }
+
     /** This function is for getting a single row statistic. Mainly targeted to       * compute concept name, ontology name, count of ontology concepts, start 
       * of concept id.
       * @param tableName Name of table for SQL query to be executed.
@@ -138,28 +184,23 @@ public class Resource {
     public HashSet<Long> getOntologyGraphSpecObs(long id, long len, HashMap<Long,HashSet<Long>> adjacencyList) {
 	try {
 	    HashSet<Long> roots = new HashSet<Long> ();
-	    String query = "select concept_id AS child , parent_concept_id AS parent FROM obs_relation WHERE concept_id >= " + id + " AND concept_id < " + (id + len) + " AND level = 1";
-	    ResultSet resultset = statement.executeQuery(query);
-	    resultset.beforeFirst();
-	    while(resultset.next()) {
-		long parent = resultset.getLong("parent");
-		long child = resultset.getLong("child");
-			
-		if (!adjacencyList.containsKey(parent)) {
-                    HashSet<Long> childs = new HashSet<Long> ();
-                    childs.add(child);
-                    adjacencyList.put(parent,childs);
-                } else {
-                    HashSet<Long> childs = adjacencyList.get(parent);
-                    childs.add(child);
-                    adjacencyList.put(parent,childs);
-                }
-
-		
-	    }
-	    resultset.close();
+	    final HashMap<Long,HashSet<Long>> graph = adjacencyList;
+	    String query = "SELECT parent_concept_id , concept_id FROM obs_relation WHERE concept_id >= ? AND concept_id < ? AND level = 1";
+	    PreparedStatement prepared = getStreamingStatement(query);
+	    prepared.setLong(1,id);
+	    prepared.setLong(2,id + len);
+	    streamRows(prepared, new RowHandler () {
+		    public void handleRow(long parent, long child) {
+			HashSet<Long> childs = graph.get(parent);
+			if (childs == null) {
+			    childs = new HashSet<Long> ();
+			    graph.put(parent,childs);
+			}
+			childs.add(child);
+		    }
+		});
 	    query = "SELECT id as root from obs_concept where id >= " + id + " AND id < " + (id + len) + " AND is_toplevel = 1";
-            resultset = statement.executeQuery(query);
+            ResultSet resultset = statement.executeQuery(query);
             resultset.beforeFirst();
             while(resultset.next()) {
                 roots.add(resultset.getLong("root"));
@@ -174,6 +215,30 @@ public class Resource {
 
     }
 
+    /**
+     * This function returns the starting concept identifier and the number
+     * of concepts of every ontology, sorted on the starting identifier. It is
+     * designed specific to the NCBO's resource_index_test database.
+     * @return List of (start, length) pairs.
+     */
+    public ArrayList<long []> getOntologyRanges() {
+	try {
+	    ArrayList<long []> ranges = new ArrayList<long []> ();
+	    String query = "SELECT MIN(id) AS start, COUNT(id) AS length FROM obs_concept GROUP BY ontology_id ORDER BY start";
+	    ResultSet resultset = statement.executeQuery(query);
+	    resultset.beforeFirst();
+	    while(resultset.next()) {
+		long [] range = {resultset.getLong("start"), resultset.getLong("length")};
+		ranges.add(range);
+	    }
+	    resultset.close();
+	    return ranges;
+	} catch (Exception e) {
+	    System.out.println("Exception : " + e.getMessage());
+	    return null;
+	}
+    }
+
     /* This helper function is for executing and returning and iterator to a table,
      * would help in adding data from resource to a structure if the table is huge.
      */
@@ -189,6 +254,122 @@ public class Resource {
 	}
     }
 
+    /**
+     * Prepares a statement whose rows are streamed from the server one by
+     * one instead of being buffered client-side. The connection cannot run
+     * another query until the rows of a streamed result set are read.
+     * @param query SQL query with parameters.
+     * @return Prepared statement, reused for the same query.
+     */
+    private PreparedStatement getStreamingStatement(String query) throws SQLException {
+	PreparedStatement prepared = preparedStatements.get(query);
+	if (prepared == null) {
+	    prepared = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	    // MySQL Connector/J streams rows with this fetch size.
+	    prepared.setFetchSize(Integer.MIN_VALUE);
+	    preparedStatements.put(query,prepared);
+	}
+	return prepared;
+    }
+
+    /**
+     * Executes a prepared statement of two long columns and hands its rows
+     * to a callback.
+     * @param prepared Prepared statement with its parameters set.
+     * @param handler Callback for the rows.
+     * @return Number of rows read.
+     */
+    private long streamRows(PreparedStatement prepared, RowHandler handler) throws SQLException {
+	long rows = 0;
+	ResultSet resultset = prepared.executeQuery();
+	try {
+	    while(resultset.next()) {
+		handler.handleRow(resultset.getLong(1),resultset.getLong(2));
+		rows ++;
+	    }
+	} finally {
+	    resultset.close();
+	}
+	return rows;
+    }
+
+    /**
+     * This function streams the rows of a table over a range of its first
+     * column, ordered on both columns, to a callback. The rows are read in
+     * keyset pages of <code>pageRows</code> rows, each resuming after the 
+     * last (key, value) pair of the previous one, so the table is read 
+     * sequentially along its (key, value) index whatever the gaps between
+     * keys, and memory use does not depend on the size of the range. Rows 
+     * repeating the last pair of a page are dropped. A 
+     * <code>PageHandler</code> is told of the end of each page.
+     * @param tableName Name of table for SQL query to be executed.
+     * @param outColumnName1 Name of the key column, e.g. element_id.
+     * @param outColumnName2 Name of the value column, e.g. concept_id.
+     * @param startIndex First key of the range.
+     * @param endIndex Last key of the range.
+     * @param handler Callback for the rows.
+     * @return Number of rows read, or -1 on error.
+     */
+    public long streamResourceStatistics(String tableName, String outColumnName1, String outColumnName2, long startIndex, long endIndex, RowHandler handler) {
+	try {
+	    String query = "SELECT " + outColumnName1 + " , " + outColumnName2 + " FROM " + tableName + " WHERE " + outColumnName1 + " <= ? AND (" + outColumnName1 + " > ? OR (" + outColumnName1 + " = ? AND " + outColumnName2 + " > ?)) ORDER BY " + outColumnName1 + " , " + outColumnName2 + " LIMIT ?";
+	    PreparedStatement prepared = getStreamingStatement(query);
+	    long rows = 0;
+	    // The key just below the range with the largest value starts the range.
+	    long lastKey = startIndex - 1;
+	    long lastValue = Long.MAX_VALUE;
+	    final long [] last = new long[2];
+	    final RowHandler rowHandler = handler;
+	    RowHandler tracker = new RowHandler () {
+		    public void handleRow(long key, long value) {
+			last[0] = key;
+			last[1] = value;
+			rowHandler.handleRow(key,value);
+		    }
+		};
+	    while (true) {
+		prepared.setLong(1,endIndex);
+		prepared.setLong(2,lastKey);
+		prepared.setLong(3,lastKey);
+		prepared.setLong(4,lastValue);
+		prepared.setLong(5,pageRows);
+		long pageCount = streamRows(prepared,tracker);
+		rows += pageCount;
+		if (handler instanceof PageHandler)
+		    ((PageHandler) handler).endPage();
+		if (pageCount < pageRows)
+		    break;
+		lastKey = last[0];
+		lastValue = last[1];
+	    }
+	    return rows;
+	} catch (Exception e) {
+	    System.out.println(e.getMessage());
+	    return -1;
+	}
+    }
+
+    /**
+     * This function gets the largest key of a table, which bounds a read of
+     * the table in windows of keys whatever the gaps between keys.
+     * @param tableName Name of table for SQL query to be executed.
+     * @param outColumnName1 Name of the key column, e.g. element_id.
+     * @return Largest key, 0 for an empty table, or -1 on error.
+     */
+    public long getMaxKey(String tableName, String outColumnName1) {
+	try {
+	    long maxKey = 0;
+	    ResultSet resultset = statement.executeQuery("SELECT MAX(" + outColumnName1 + ") FROM " + tableName);
+	    if (resultset.next())
+		maxKey = resultset.getLong(1);
+	    resultset.close();
+	    return maxKey;
+	} catch (Exception e) {
+	    System.out.println(e.getMessage());
+	    return -1;
+	}
+    }
+
     /**
      * This function iterates through the table and gets values. This is 
      * specifically tailored for obs based tables, in NCBO resource tables. 
@@ -221,6 +402,9 @@ public class Resource {
      */
     public void close () {
 	try {
+	    Iterator prepared = preparedStatements.values().iterator();
+	    while(prepared.hasNext())
+		((PreparedStatement) prepared.next()).close();
 	    statement.close();
 	    connection.close();
 	} catch (Exception e) {
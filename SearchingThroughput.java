@@ -0,0 +1,100 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The <code>SearchingThroughput</code> class measures how count queries on a shared <code>CachingStatisticsSearching</code> scale with the number of threads.
+ *
+ * Usage : SearchingThroughput indexName startConcept length [maxThreads] [queriesPerThread]
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public class SearchingThroughput {
+
+    /**
+     * Shared searcher under test.
+     */
+    CachingStatisticsSearching searcher;
+
+    /**
+     * Concept id range the queries are drawn from.
+     */
+    long startIndex;
+
+    long length;
+
+    public SearchingThroughput(CachingStatisticsSearching searcher, long startIndex, long length) {
+	this.searcher = searcher;
+	this.startIndex = startIndex;
+	this.length = length;
+    }
+
+    /**
+     * Runs a fixed number of random count queries on each of a number of
+     * threads.
+     * @param threads Number of threads.
+     * @param queries Number of queries per thread.
+     * @return Queries per second over all threads.
+     */
+    public double run(int threads, final int queries) throws Exception {
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayList<Future<Long>> results = new ArrayList<Future<Long>> ();
+	long time = System.nanoTime();
+	for(int t=0; t < threads; t++) {
+	    final long seed = t;
+	    results.add(pool.submit(new Callable<Long> () {
+		    public Long call() {
+			Random random = new Random(seed);
+			long checksum = 0;
+			for(int q=0; q < queries; q++) {
+			    long parent = startIndex + (long) (random.nextDouble() * length);
+			    long child = startIndex + (long) (random.nextDouble() * length);
+			    long context = startIndex + (long) (random.nextDouble() * length);
+			    long [] parentConcept = {parent};
+			    long [] counts = searcher.getCountsUnderContext(parentConcept,child,context);
+			    if (counts != null)
+				checksum += counts[3];
+			}
+			return checksum;
+		    }
+		}));
+	}
+	for(int t=0; t < threads; t++)
+	    results.get(t).get();
+	pool.shutdown();
+	double seconds = (System.nanoTime() - time) / 1e9;
+	return (threads * (double) queries) / seconds;
+    }
+
+    public static void main(String [] args) throws Exception {
+	String indexName = args[0];
+	long startIndex = Long.parseLong(args[1]);
+	long length = Long.parseLong(args[2]);
+	int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+	int queries = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+	CachingStatisticsSearching css = new CachingStatisticsSearching(indexName,true);
+	SearchingThroughput throughput = new SearchingThroughput(css,startIndex,length);
+	// Warm up the page cache and the JIT before measuring.
+	throughput.run(1,queries);
+	double single = 0.0;
+	for(int threads = 1; threads <= maxThreads; threads *= 2) {
+	    double rate = throughput.run(threads,queries);
+	    if (threads == 1)
+		single = rate;
+	    System.out.println(threads + "\t" + Math.round(rate) + " queries/s\t" + (Math.round(100.0 * rate / single) / 100.0) + "x");
+	}
+    }
+
+}
@@ -9,6 +9,15 @@ import java.io.ObjectInputStream;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.sql.ResultSet;
 
@@ -25,6 +34,20 @@ import java.util.HashSet;
  */
 public class SerializableGraphADS {
 
+    /**
+     * Magic number and version of the graph store format. Version 2 adds the
+     * edges with an endpoint outside the ontology; stores of version 1 are
+     * still opened, without them.
+     */
+    static final int MAGIC = 0x414d4d47;
+
+    static final int VERSION = 2;
+
+    /**
+     * Size of the fixed header of a graph store in bytes.
+     */
+    static final int HEADER_SIZE = 48;
+
     /**
      * Characterizes the ontology graph.
      */
@@ -66,6 +89,8 @@ public class SerializableGraphADS {
 
     public GraphADS restoreSerializableObject(String objectname) {
 	try {
+	    if (isGraphStore(objectname))
+		return openGraphStore(objectname);
 	    GraphADS ontologyDAG;
 	    FileInputStream fis = new FileInputStream(objectname);
 	    ObjectInputStream ois = new ObjectInputStream(fis);
@@ -80,26 +105,188 @@ public class SerializableGraphADS {
 
     }
 
+    /**
+     * Tests if a file is a graph store rather than a serialized object.
+     * @param filename Name of the file.
+     * @return True for a graph store.
+     */
+    private boolean isGraphStore(String filename) throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(filename));
+	try {
+	    return in.available() >= 4 && in.readInt() == MAGIC;
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Method to write the GraphADS object as a graph store : a header, the
+     * name, then the compressed sparse row arrays, the roots and the levels
+     * of the reverse topological sort as big-endian ints, so that it can be
+     * opened by memory-mapping, and last the (parent, child) pairs of the
+     * edges with an endpoint outside the ontology as longs. The store is
+     * written next to the file and renamed over it in a single step, so that
+     * processes keeping the old store mapped go on reading it.
+     * @param filename Name of the file.
+     * @return null.
+     */
+    public void writeGraphStore(String filename) {
+	try {
+	    GraphADS graph = this.ontologyDAG;
+	    int [][] levels = graph.levelSort();
+	    int levelNodeCount = 0;
+	    for(int i=0; i < levels.length; i++)
+		levelNodeCount += levels[i].length;
+	    byte [] name = (graph.name == null ? "" : graph.name).getBytes("UTF-8");
+	    HashMap<Long,HashSet<Long>> externalEdges = graph.getExternalEdges();
+	    int externalCount = 0;
+	    Iterator<HashSet<Long>> eIterator = externalEdges.values().iterator();
+	    while(eIterator.hasNext())
+		externalCount += eIterator.next().size();
+	    File temp = new File(filename + ".tmp");
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(graph.startIndex);
+		out.writeLong(graph.length);
+		out.writeInt(graph.children.limit());
+		out.writeInt(graph.roots.size());
+		out.writeInt(levels.length);
+		out.writeInt(levelNodeCount);
+		out.writeInt(name.length);
+		out.writeInt(externalCount);
+		out.write(name);
+		// The arrays start on an int boundary.
+		for(int i=name.length; i % 4 != 0; i++)
+		    out.write(0);
+		IntBuffer [] arrays = {graph.childOffsets, graph.children, graph.parentOffsets, graph.parents};
+		for(int i=0; i < arrays.length; i++) {
+		    for(int j=0; j < arrays[i].limit(); j++)
+			out.writeInt(arrays[i].get(j));
+		}
+		Iterator rIterator = graph.roots.iterator();
+		while(rIterator.hasNext())
+		    out.writeInt(graph.index((Long) rIterator.next()));
+		int offset = 0;
+		for(int i=0; i < levels.length; i++) {
+		    out.writeInt(offset);
+		    offset += levels[i].length;
+		}
+		out.writeInt(offset);
+		for(int i=0; i < levels.length; i++) {
+		    for(int j=0; j < levels[i].length; j++)
+			out.writeInt(levels[i][j]);
+		}
+		Iterator<Long> pIterator = externalEdges.keySet().iterator();
+		while(pIterator.hasNext()) {
+		    Long parent = pIterator.next();
+		    Iterator<Long> cIterator = externalEdges.get(parent).iterator();
+		    while(cIterator.hasNext()) {
+			out.writeLong(parent);
+			out.writeLong(cIterator.next());
+		    }
+		}
+	    } finally {
+		out.close();
+	    }
+	    AtomicFiles.replace(temp,filename);
+	} catch (Exception e) {
+	    System.out.println("Exception " + e.getMessage());
+	}
+    }
+
+    /**
+     * Slice of an int buffer.
+     * @param buffer Buffer.
+     * @param start First int of the slice.
+     * @param count Number of ints.
+     * @return Slice.
+     */
+    private static IntBuffer slice(IntBuffer buffer, int start, int count) {
+	IntBuffer duplicate = buffer.duplicate();
+	duplicate.position(start);
+	duplicate.limit(start + count);
+	return duplicate.slice();
+    }
+
+    /**
+     * Method to open a graph store written by <code>writeGraphStore</code>.
+     * The arrays are memory-mapped, so processes opening the same store
+     * share it through the page cache; only the name and the roots are read
+     * onto the heap.
+     * @param filename Name of the file.
+     * @return GraphADS containing the ontology.
+     */
+    public GraphADS openGraphStore(String filename) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(filename,"r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    int version = buffer.getInt(4);
+	    if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION)
+		throw new IOException("Not a graph store : " + filename);
+	    GraphADS graph = new GraphADS();
+	    graph.startIndex = buffer.getLong(8);
+	    graph.length = buffer.getLong(16);
+	    int edges = buffer.getInt(24);
+	    int rootCount = buffer.getInt(28);
+	    int levelCount = buffer.getInt(32);
+	    int levelNodeCount = buffer.getInt(36);
+	    byte [] name = new byte[buffer.getInt(40)];
+	    int externalCount = version == 1 ? 0 : buffer.getInt(44);
+	    buffer.position(HEADER_SIZE);
+	    buffer.get(name);
+	    graph.name = new String(name,"UTF-8");
+	    buffer.position(HEADER_SIZE + (name.length + 3) / 4 * 4);
+	    IntBuffer ints = buffer.slice().asIntBuffer();
+	    int nodes = (int) graph.length;
+	    int position = 0;
+	    graph.childOffsets = slice(ints, position, nodes + 1);
+	    position += nodes + 1;
+	    graph.children = slice(ints, position, edges);
+	    position += edges;
+	    graph.parentOffsets = slice(ints, position, nodes + 1);
+	    position += nodes + 1;
+	    graph.parents = slice(ints, position, edges);
+	    position += edges;
+	    graph.roots = new HashSet<Long> ();
+	    for(int i=0; i < rootCount; i++)
+		graph.roots.add(graph.concept(ints.get(position + i)));
+	    position += rootCount;
+	    graph.levelOffsets = slice(ints, position, levelCount + 1);
+	    position += levelCount + 1;
+	    graph.levelNodes = slice(ints, position, levelNodeCount);
+	    position += levelNodeCount;
+	    graph.externalEdges = new HashMap<Long,HashSet<Long>> ();
+	    int edgeStart = HEADER_SIZE + (name.length + 3) / 4 * 4 + 4 * position;
+	    for(int i=0; i < externalCount; i++)
+		graph.addExternalEdge(buffer.getLong(edgeStart + 16 * i),buffer.getLong(edgeStart + 16 * i + 8));
+	    return graph;
+	} finally {
+	    file.close();
+	}
+    }
+
     public static void main(String [] args) throws Exception {
 	
 	SerializableGraphADS sga = new SerializableGraphADS();
+	// Converts serialized graphs to graph stores in place.
+	if (args[0].equals("-convert")) {
+	    for(int i=1; i < args.length; i++) {
+		sga.ontologyDAG = sga.restoreSerializableObject(args[i]);
+		sga.writeGraphStore(args[i]);
+	    }
+	    return;
+	}
 	GraphADS ga = sga.restoreSerializableObject("serialObjectsOBS_Roots/" + args[0] + ".obj");
 	
 	IdMaps im = new IdMaps("idMaps/"+args[0]+"idMaps.obj");
 	
-	HashMap<Long,HashSet<Long>> hm = ga.adjacencyList;
-
-	Set set = hm.entrySet();
-	Iterator i = set.iterator();
-	
-	while(i.hasNext()){
-	    Map.Entry me = (Map.Entry)i.next();
-	    Long s = (Long) me.getKey();
-	    HashSet<Long> l = (HashSet<Long>) me.getValue();
-	    
-	    Iterator j = l.iterator();
-	    while(j.hasNext()) {
-		Long d = (Long) j.next();
+	for(int n=0; n < ga.length; n++) {
+	    Long s = ga.concept(n);
+	    for(int c = ga.childStart(n); c < ga.childEnd(n); c++) {
+		Long d = ga.concept(ga.child(c));
 		System.out.println(im.getName(s) + "\t" + im.getName(d));
 	    }
 	    
@@ -0,0 +1,64 @@
+/*
+AMMO: Automated Method For Mapping Ontology
+A Bayesian-centric mapping approach for bioinformatics
+*/
+
+package ammo;
+
+/**
+ * The <code>StatisticsSearching</code> interface abstracts the count queries
+ * the mapping algorithms run against the cached annotation statistics, so
+ * that different statistics engines can be plugged in.
+ *
+ * @author Kshitij Marwah (ksm@mit.edu)
+ * @version 1.0
+ */
+public interface StatisticsSearching {
+
+    /**
+     * Method to get counts for a concept and the parents under a given context.
+     * @param parentConcept Array of parent concepts in a given ontology.
+     * @param childConcept Child concept for a given ontology.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Long-array representing the possible counts.
+     */
+    public long [] getCountsUnderContext(long [] parentConcept, long childConcept, long contextConcept);
+
+    /**
+     * Method to get the counts of a source concept against every concept of
+     * a destination ontology under a given context, in one pass.
+     * @param sourceConcept Source concept acting as the single parent.
+     * @param contextConcept Context concept for a given ontology.
+     * @param startIndex Starting concept identifier of the destination ontology.
+     * @param length Total number of concepts in the destination ontology.
+     * @return Long-array with the four counts of <code>getCountsUnderContext</code> for destination <code>startIndex + i</code> at <code>4*i</code>.
+     */
+    public long [] getDestinationCountsUnderContext(long sourceConcept, long contextConcept, long startIndex, long length);
+
+    /**
+     * Method to get the number of elements annotated with a source concept
+     * and with a concept anywhere in the subtree of a destination concept, 
+     * under a given context. Needs an index built with hierarchy propagation.
+     * @param sourceConcept Source concept for a given ontology.
+     * @param subtreeConcept Root of the destination subtree.
+     * @param contextConcept Context concept for a given ontology.
+     * @return Count for the subtree, or -1 if the index has no propagated hierarchy.
+     */
+    public long getSubtreeCountUnderContext(long sourceConcept, long subtreeConcept, long contextConcept);
+
+    /**
+     * Getting total concept count in the data-structure for a given ontology.
+     * @param concept Starting concept identifier for a given ontology.
+     * @param length Total number of concepts in the ontology.
+     * @return Total concept count.
+     */
+    public long getTotalConceptCount(long concept, long length);
+
+    /**
+     * Getting total concept count in the data-structure for a given concept.
+     * @param concept Concept identifier for a given ontology.
+     * @return Total count for the given concept.
+     */
+    public long getConceptCount(long concept);
+
+}